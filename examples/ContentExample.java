@@ -16,7 +16,6 @@ import services.SyncPointService;
 import util.ConfigurationHelper;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
 
@@ -203,17 +202,15 @@ public class ContentExample {
 
         System.out.printf("Using storage endpoint %s - %s%n", storageEndpoint.Id, storageEndpoint.Name);
         try {
-            byte[] fileBody = "file body".getBytes();
-            String fileName = "newFile.txt";
-
+            String result;
             String path = ConfigurationHelper.getUploadFilePath();
             if (StringUtils.isNotEmpty(path)) {
-                fileBody = Files.readAllBytes(Paths.get(path));
-                fileName = new java.io.File(path).getName();
+                result = FileService.uploadFile(storageEndpoint.Urls[0].Url, folder.VirtualPath,
+                                                folder.SyncpointId, Paths.get(path));
+            } else {
+                result = FileService.uploadFile(storageEndpoint.Urls[0].Url, folder.VirtualPath, "newFile.txt",
+                                                folder.SyncpointId, "file body".getBytes());
             }
-
-            String result = FileService.uploadFile(storageEndpoint.Urls[0].Url, folder.VirtualPath, fileName,
-                                                   folder.SyncpointId, fileBody);
             System.out.printf("Finished File upload. File upload result: %s%n", result);
         } catch (IOException e) {
             e.printStackTrace();
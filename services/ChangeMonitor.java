@@ -0,0 +1,520 @@
+package services;
+
+import entities.File;
+import entities.Folder;
+import util.ConfigurationHelper;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Watches a Folder tree for remote changes by listing its Folders again from time to time.
+ * <p>
+ * Instead of crawling the whole tree in every cycle, each Folder is listed on its own schedule:
+ * a Folder whose listing changed is listed again sooner, one that did not change later, between
+ * the shortest and the longest interval. Listings are conditional requests where the server supports
+ * entity tags, so an unchanged Folder costs no listing body. Each listing is compared with the previous
+ * one and the differences are reported as {@link Change}s; new subfolders are watched as they appear
+ * and removed ones are dropped.
+ * <p>
+ * The monitor sends at most a fixed number of listings per second however many Folders it watches.
+ * When more Folders are due than the budget allows, the ones that have waited longest go first, so
+ * the intervals grow evenly; {@link Statistics#getLagMillis()} shows how far behind the schedule is.
+ */
+public class ChangeMonitor implements Closeable {
+
+    private final long syncPointId;
+    private final long nanosPerRequest;
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+    private final boolean suppressErrors;
+    private final Consumer<Change> listener;
+    private final DelayQueue<Watch> queue = new DelayQueue<>();
+    private final Map<Long, Watch> watches = new ConcurrentHashMap<>();
+    private final ExecutorService pollers;
+    private final Semaphore idlePollers;
+    private final Statistics statistics = new Statistics();
+    private Thread dispatcher;
+    private long nextRequestNanos;
+    private volatile boolean closed;
+
+    /**
+     * Creates a monitor with the budget and intervals set by the changePollRequestsPerSecond,
+     * changePollMinSeconds and changePollMaxSeconds settings.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param listener
+     *            receives the changes, one at a time
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     */
+    public ChangeMonitor(long syncPointId, Consumer<Change> listener, boolean suppressErrors) {
+        this(syncPointId, ConfigurationHelper.getChangePollRequestsPerSecond(),
+                TimeUnit.SECONDS.toMillis(ConfigurationHelper.getChangePollMinSeconds()),
+                TimeUnit.SECONDS.toMillis(ConfigurationHelper.getChangePollMaxSeconds()), listener, suppressErrors);
+    }
+
+    /**
+     * Creates a monitor.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param requestsPerSecond
+     *            the maximum number of Folder listings per second
+     * @param minIntervalMillis
+     *            the shortest time between two listings of a Folder
+     * @param maxIntervalMillis
+     *            the longest time between two listings of a Folder, unless the budget does not allow it
+     * @param listener
+     *            receives the changes, one at a time
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     */
+    public ChangeMonitor(long syncPointId, double requestsPerSecond, long minIntervalMillis, long maxIntervalMillis,
+                         Consumer<Change> listener, boolean suppressErrors) {
+        this.syncPointId = syncPointId;
+        this.nanosPerRequest = (long) (TimeUnit.SECONDS.toNanos(1) / Math.max(0.001, requestsPerSecond));
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minIntervalMillis));
+        this.maxIntervalNanos = Math.max(minIntervalNanos, TimeUnit.MILLISECONDS.toNanos(maxIntervalMillis));
+        this.listener = listener;
+        this.suppressErrors = suppressErrors;
+
+        // enough threads to keep the budget busy while listings are in flight, within the metadata lane
+        int threads = (int) Math.max(1, Math.min(ConfigurationHelper.getMetadataConcurrency(),
+                Math.ceil(requestsPerSecond)));
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.idlePollers = new Semaphore(threads);
+        this.pollers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "change-monitor-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts watching a Folder and all its subfolders. The first listing of each Folder is the baseline
+     * the later ones are compared with, so no changes are reported until the tree has been listed once.
+     *
+     * @param rootFolderId
+     *            the Folder ID, usually the SyncPoint RootFolderId
+     */
+    public synchronized void start(long rootFolderId) {
+        if (dispatcher != null) {
+            throw new IllegalStateException("The monitor has already been started.");
+        }
+        watch(rootFolderId, 0, true);
+        dispatcher = new Thread(this::dispatch, "change-monitor");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Stops watching. Listings in progress are abandoned.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+        pollers.shutdownNow();
+    }
+
+    /**
+     * @return the number of Folders watched
+     */
+    public int getWatchedFolderCount() {
+        return watches.size();
+    }
+
+    /**
+     * @return the progress of the monitor
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Hands the Folders that are due to the pollers, no faster than the request budget.
+     * A Folder is only handed over when a poller is free to list it right away; otherwise listings
+     * that slowed down would queue up in the pool and then be sent back to back, above the budget.
+     */
+    private void dispatch() {
+        try {
+            while (!closed) {
+                idlePollers.acquire();
+                Watch watch = queue.take();
+                if (watch.cancelled) {
+                    idlePollers.release();
+                    continue;
+                }
+                long now = System.nanoTime();
+                long slot = Math.max(now, nextRequestNanos);
+                nextRequestNanos = slot + nanosPerRequest;
+                if (slot > now) {
+                    TimeUnit.NANOSECONDS.sleep(slot - now);
+                }
+                statistics.lagNanos = Math.max(0, System.nanoTime() - watch.dueNanos);
+                pollers.execute(() -> {
+                    try {
+                        poll(watch);
+                    } finally {
+                        idlePollers.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // the pollers were shut down
+            if (!closed) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void poll(Watch watch) {
+        if (watch.cancelled || closed) {
+            return;
+        }
+        statistics.polls.incrementAndGet();
+        Folder folder = FolderService.getFolderIfModified(syncPointId, watch.folderId, watch.entityTag,
+                suppressErrors);
+        if (folder == null) {
+            statistics.errors.incrementAndGet();
+            watch.intervalNanos = Math.min(maxIntervalNanos, Math.max(minIntervalNanos, watch.intervalNanos * 2));
+        } else if (folder == FolderService.NOT_MODIFIED) {
+            statistics.notModified.incrementAndGet();
+            watch.intervalNanos = lengthen(watch.intervalNanos);
+        } else if (compare(watch, folder)) {
+            watch.intervalNanos = Math.max(minIntervalNanos, watch.intervalNanos / 2);
+        } else {
+            watch.intervalNanos = lengthen(watch.intervalNanos);
+        }
+
+        if (!watch.cancelled && !closed) {
+            watch.dueNanos = System.nanoTime() + watch.intervalNanos;
+            queue.put(watch);
+        }
+    }
+
+    private long lengthen(long intervalNanos) {
+        return Math.min(maxIntervalNanos, Math.max(minIntervalNanos, intervalNanos + intervalNanos / 2));
+    }
+
+    /**
+     * Compares a listing with the previous one of the Folder, reports the differences and
+     * keeps the listing as the new baseline.
+     *
+     * @return true if the listing changed
+     */
+    private boolean compare(Watch watch, Folder folder) {
+        File[] files = folder.Files == null ? new File[0] : folder.Files.clone();
+        Arrays.sort(files, Comparator.comparingLong(file -> file.FileId));
+        long[] fileIds = new long[files.length];
+        String[] fileNames = new String[files.length];
+        String[] fileVersions = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            fileIds[i] = files[i].FileId;
+            fileNames[i] = files[i].Filename;
+            fileVersions[i] = getVersion(files[i]);
+        }
+
+        Folder[] folders = folder.Folders == null ? new Folder[0] : folder.Folders.clone();
+        Arrays.sort(folders, Comparator.comparingLong(subfolder -> subfolder.FolderId));
+        long[] folderIds = new long[folders.length];
+        String[] folderNames = new String[folders.length];
+        for (int i = 0; i < folders.length; i++) {
+            folderIds[i] = folders[i].FolderId;
+            folderNames[i] = folders[i].Name;
+        }
+
+        boolean report = !watch.baseline;
+        int changes = 0;
+        int i = 0;
+        int j = 0;
+        while (i < watch.folderIds.length || j < folderIds.length) {
+            long oldId = i < watch.folderIds.length ? watch.folderIds[i] : Long.MAX_VALUE;
+            long newId = j < folderIds.length ? folderIds[j] : Long.MAX_VALUE;
+            if (oldId < newId) {
+                unwatch(oldId, watch.folderId);
+                changes += emit(report, TreeDiff.Type.REMOVED, folder, createFolder(oldId), null);
+                i++;
+            } else if (oldId > newId) {
+                watch(newId, watch.folderId, watch.baseline);
+                changes += emit(report, TreeDiff.Type.ADDED, folder, folders[j], null);
+                j++;
+            } else {
+                if (!Objects.equals(watch.folderNames[i], folderNames[j])) {
+                    changes += emit(report, TreeDiff.Type.MOVED, folder, folders[j], null);
+                }
+                i++;
+                j++;
+            }
+        }
+
+        i = 0;
+        j = 0;
+        while (i < watch.fileIds.length || j < fileIds.length) {
+            long oldId = i < watch.fileIds.length ? watch.fileIds[i] : Long.MAX_VALUE;
+            long newId = j < fileIds.length ? fileIds[j] : Long.MAX_VALUE;
+            if (oldId < newId) {
+                changes += emit(report, TreeDiff.Type.REMOVED, folder, null, createFile(oldId, folder));
+                i++;
+            } else if (oldId > newId) {
+                changes += emit(report, TreeDiff.Type.ADDED, folder, null, files[j]);
+                j++;
+            } else {
+                if (!Objects.equals(watch.fileNames[i], fileNames[j])) {
+                    changes += emit(report, TreeDiff.Type.MOVED, folder, null, files[j]);
+                }
+                if (!Objects.equals(watch.fileVersions[i], fileVersions[j])) {
+                    changes += emit(report, TreeDiff.Type.MODIFIED, folder, null, files[j]);
+                }
+                i++;
+                j++;
+            }
+        }
+
+        watch.fileIds = fileIds;
+        watch.fileNames = fileNames;
+        watch.fileVersions = fileVersions;
+        watch.folderIds = folderIds;
+        watch.folderNames = folderNames;
+        watch.baseline = false;
+        return changes > 0;
+    }
+
+    /**
+     * @return 1 if a change was counted, even when it was not reported
+     */
+    private int emit(boolean report, TreeDiff.Type type, Folder parent, Folder folder, File file) {
+        if (!report) {
+            return 0;
+        }
+        statistics.changes.incrementAndGet();
+        Change change = new Change(type, parent, folder, file);
+        synchronized (listener) {
+            try {
+                listener.accept(change);
+            } catch (RuntimeException e) {
+                System.err.println(String.format("Could not handle change %s", change));
+                e.printStackTrace();
+            }
+        }
+        return 1;
+    }
+
+    private void watch(long folderId, long parentFolderId, boolean baseline) {
+        Watch watch = new Watch(folderId, parentFolderId, baseline);
+        watch.intervalNanos = minIntervalNanos;
+        watch.dueNanos = System.nanoTime();
+        Watch existing = watches.putIfAbsent(folderId, watch);
+        if (existing != null) {
+            // the Folder was moved here from another watched Folder
+            existing.parentFolderId = parentFolderId;
+            return;
+        }
+        queue.put(watch);
+    }
+
+    /**
+     * Stops watching a removed Folder and its subfolders, unless it has been moved to another watched Folder.
+     */
+    private void unwatch(long folderId, long parentFolderId) {
+        Watch watch = watches.get(folderId);
+        if (watch == null || watch.parentFolderId != parentFolderId || !watches.remove(folderId, watch)) {
+            return;
+        }
+        watch.cancelled = true;
+        queue.remove(watch);
+        for (long subfolderId : watch.folderIds) {
+            unwatch(subfolderId, folderId);
+        }
+    }
+
+    /**
+     * Identifies the contents of a File: its latest version, or its length, hash and last write time
+     * if the listing does not include versions.
+     */
+    private static String getVersion(File file) {
+        if (file.LatestVersionId != null) {
+            return file.LatestVersionId;
+        }
+        return file.Length + "/" + file.Hash + "/" + file.LastWriteTimeUtc;
+    }
+
+    private static Folder createFolder(long folderId) {
+        Folder folder = new Folder();
+        folder.FolderId = folderId;
+        return folder;
+    }
+
+    private static File createFile(long fileId, Folder folder) {
+        File file = new File();
+        file.FileId = fileId;
+        file.FolderId = folder.FolderId;
+        file.VirtualPath = folder.VirtualPath;
+        return file;
+    }
+
+    /**
+     * A watched Folder: its schedule and the listing it was last seen with.
+     */
+    private static class Watch implements Delayed {
+        final long folderId;
+        final String[] entityTag = new String[1];
+        volatile long parentFolderId;
+        volatile boolean cancelled;
+        boolean baseline;
+        long intervalNanos;
+        long dueNanos;
+        long[] fileIds = new long[0];
+        String[] fileNames = new String[0];
+        String[] fileVersions = new String[0];
+        long[] folderIds = new long[0];
+        String[] folderNames = new String[0];
+
+        Watch(long folderId, long parentFolderId, boolean baseline) {
+            this.folderId = folderId;
+            this.parentFolderId = parentFolderId;
+            this.baseline = baseline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueNanos, ((Watch) other).dueNanos);
+        }
+    }
+
+    /**
+     * A change found by comparing two listings of a Folder.
+     */
+    public static class Change {
+        private final TreeDiff.Type type;
+        private final Folder parent;
+        private final Folder folder;
+        private final File file;
+
+        Change(TreeDiff.Type type, Folder parent, Folder folder, File file) {
+            this.type = type;
+            this.parent = parent;
+            this.folder = folder;
+            this.file = file;
+        }
+
+        /**
+         * @return the kind of change; {@link TreeDiff.Type#MOVED} for a rename within the Folder,
+         *         while a move between Folders is reported as removed and added
+         */
+        public TreeDiff.Type getType() {
+            return type;
+        }
+
+        /**
+         * @return true for a subfolder, false for a File
+         */
+        public boolean isFolder() {
+            return folder != null;
+        }
+
+        /**
+         * @return the listing of the Folder that changed
+         */
+        public Folder getParent() {
+            return parent;
+        }
+
+        /**
+         * @return the subfolder, only with its FolderId if it was removed; null for a File
+         */
+        public Folder getFolder() {
+            return folder;
+        }
+
+        /**
+         * @return the File, only with its FileId if it was removed; null for a subfolder
+         */
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public String toString() {
+            String name = folder != null ? (folder.Name != null ? folder.Name : "folder " + folder.FolderId)
+                    : (file.Filename != null ? file.Filename : "file " + file.FileId);
+            return String.format("%s %s%s", type, parent.VirtualPath != null ? parent.VirtualPath : "", name);
+        }
+    }
+
+    /**
+     * Progress of a monitor.
+     */
+    public static class Statistics {
+        private final AtomicLong polls = new AtomicLong();
+        private final AtomicLong notModified = new AtomicLong();
+        private final AtomicLong changes = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private volatile long lagNanos;
+
+        /**
+         * @return the number of Folder listings sent
+         */
+        public long getPolls() {
+            return polls.get();
+        }
+
+        /**
+         * @return the number of listings the server answered as not modified
+         */
+        public long getNotModified() {
+            return notModified.get();
+        }
+
+        /**
+         * @return the number of changes reported
+         */
+        public long getChanges() {
+            return changes.get();
+        }
+
+        /**
+         * @return the number of listings that failed
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return how long the last listing waited past its scheduled time for the request budget
+         */
+        public long getLagMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(lagNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d listings, %d not modified, %d changes, %d errors, %d ms behind",
+                    getPolls(), getNotModified(), getChanges(), getErrors(), getLagMillis());
+        }
+    }
+}
@@ -0,0 +1,896 @@
+package services;
+
+import entities.File;
+import entities.Folder;
+import util.HashHelper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Read-only, memory-efficient snapshot of a Folder tree.
+ * <p>
+ * Instead of one object per Folder and File, the tree is stored column by column in primitive arrays:
+ * IDs, lengths and times as longs (times as epoch milliseconds), hashes as raw bytes, and names as
+ * indexes into a table of distinct names kept as one UTF-8 byte array. Virtual paths are not stored
+ * but derived from the parent Folders. The Folders are ordered so that the subfolders of a Folder
+ * are adjacent, and the Files so that the Files of a Folder are adjacent, which makes listing
+ * a Folder a range scan. A File takes 85 bytes plus its share of the name table.
+ * <p>
+ * Folders and Files are addressed by their index in the snapshot; {@link #findFolder(long)} and
+ * {@link #findFile(long)} translate IDs into indexes. {@link #toFolder(int)} and {@link #toFile(int)}
+ * create entity objects on demand.
+ */
+public final class CompactTree {
+
+    /**
+     * The time of a File whose time is not known.
+     */
+    public static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+    private static final int HASH_BYTES = 32;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'")
+            .withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter SHORT_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    // folders, ordered by parent
+    private final long[] folderIds;
+    private final int[] folderParents;
+    private final int[] folderNames;
+    private final int[] firstSubfolders;
+    private final int[] firstFiles;
+    private final int[] foldersById;
+
+    // files, ordered by folder
+    private final long[] fileIds;
+    private final int[] fileFolders;
+    private final int[] fileNames;
+    private final long[] lengths;
+    private final long[] versionIds;
+    private final long[] creationTimes;
+    private final long[] lastWriteTimes;
+    private final byte[] hashes;
+    private final byte[] hashLengths;
+    private final int[] filesById;
+
+    // distinct strings
+    private final byte[] strings;
+    private final int[] stringOffsets;
+
+    private final int rootCount;
+    private final char pathSeparator;
+    private final int[] rootPaths;
+
+    private CompactTree(Builder builder) {
+        int folderCount = builder.folderCount;
+        int fileCount = builder.fileCount;
+        this.pathSeparator = builder.pathSeparator;
+
+        // order the folders breadth first, roots first, so the subfolders of a folder are adjacent
+        int[] parentPositions = new int[folderCount];
+        for (int i = 0; i < folderCount; i++) {
+            Integer parent = builder.folderIndexes.get(builder.parentIds[i]);
+            parentPositions[i] = parent == null || parent == i ? -1 : parent;
+        }
+        int[] byParent = orderByParent(parentPositions, folderCount);
+        int[] childStarts = firstIndexes(parentPositions, folderCount);
+        int[] folderOrder = new int[folderCount];
+        int ordered = childStarts[0];
+        System.arraycopy(byParent, 0, folderOrder, 0, ordered);
+        for (int next = 0; next < ordered; next++) {
+            int parent = folderOrder[next];
+            int children = childStarts[parent + 1] - childStarts[parent];
+            System.arraycopy(byParent, childStarts[parent], folderOrder, ordered, children);
+            ordered += children;
+        }
+        int[] newFolderIndexes = new int[folderCount];
+        for (int i = 0; i < folderCount; i++) {
+            newFolderIndexes[folderOrder[i]] = i;
+        }
+
+        folderIds = new long[folderCount];
+        folderParents = new int[folderCount];
+        folderNames = new int[folderCount];
+        int roots = 0;
+        for (int i = 0; i < folderCount; i++) {
+            int old = folderOrder[i];
+            folderIds[i] = builder.folderIds[old];
+            folderParents[i] = parentPositions[old] < 0 ? -1 : newFolderIndexes[parentPositions[old]];
+            folderNames[i] = builder.folderNames[old];
+            if (folderParents[i] < 0) {
+                roots++;
+            }
+        }
+        rootCount = roots;
+        rootPaths = new int[rootCount];
+        for (int i = 0; i < rootCount; i++) {
+            String rootPath = builder.rootPaths.get(folderIds[i]);
+            rootPaths[i] = rootPath == null ? -1 : builder.intern(rootPath);
+        }
+        firstSubfolders = firstIndexes(folderParents, folderCount);
+
+        // order the files by folder, so the files of a folder are adjacent
+        int[] fileFolderPositions = new int[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            fileFolderPositions[i] = newFolderIndexes[builder.fileFolders[i]];
+        }
+        int[] fileOrder = orderByParent(fileFolderPositions, folderCount);
+        fileIds = new long[fileCount];
+        fileFolders = new int[fileCount];
+        fileNames = new int[fileCount];
+        lengths = new long[fileCount];
+        versionIds = new long[fileCount];
+        creationTimes = new long[fileCount];
+        lastWriteTimes = new long[fileCount];
+        hashes = new byte[fileCount * HASH_BYTES];
+        hashLengths = new byte[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            int old = fileOrder[i];
+            fileIds[i] = builder.fileIds[old];
+            fileFolders[i] = fileFolderPositions[old];
+            fileNames[i] = builder.fileNames[old];
+            lengths[i] = builder.lengths[old];
+            versionIds[i] = builder.versionIds[old];
+            creationTimes[i] = builder.creationTimes[old];
+            lastWriteTimes[i] = builder.lastWriteTimes[old];
+            System.arraycopy(builder.hashes, old * HASH_BYTES, hashes, i * HASH_BYTES, HASH_BYTES);
+            hashLengths[i] = builder.hashLengths[old];
+        }
+        firstFiles = firstIndexes(fileFolders, folderCount);
+
+        foldersById = sortedIndexes(folderIds);
+        filesById = sortedIndexes(fileIds);
+
+        strings = Arrays.copyOf(builder.strings, builder.stringsLength);
+        stringOffsets = Arrays.copyOf(builder.stringOffsets, builder.stringCount + 1);
+    }
+
+    /**
+     * Crawls a Folder tree into a snapshot.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param rootFolderId
+     *            the Folder ID to start at
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return the snapshot of the Folders that could be listed
+     */
+    public static CompactTree crawl(long syncPointId, long rootFolderId, boolean suppressErrors) {
+        Builder builder = new Builder();
+        try (Stream<FolderCrawler.Item> items = new FolderCrawler(syncPointId, suppressErrors).crawl(rootFolderId)) {
+            items.forEach(item -> {
+                if (item.isFile()) {
+                    builder.addFile(item.getFolder().FolderId, item.getFile());
+                } else {
+                    builder.addFolder(item.getFolder());
+                }
+            });
+        }
+        return builder.build();
+    }
+
+    /**
+     * Scans a local directory tree into a snapshot, e.g. to compare it with a remote one.
+     * Folders and Files get IDs in the order they are found; the root Folder path is the separator.
+     *
+     * @param directory
+     *            the local directory
+     * @param computeHashes
+     *            indicates whether the SHA-256 hashes of the files are computed
+     * @return the snapshot or null if the directory could not be read
+     */
+    public static CompactTree scan(Path directory, boolean computeHashes) {
+        Builder builder = new Builder();
+        Map<Path, Long> folderIds = new HashMap<>();
+        long[] nextId = { 1 };
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    long folderId = nextId[0]++;
+                    folderIds.put(dir, folderId);
+                    if (dir.equals(directory)) {
+                        Folder root = new Folder();
+                        root.FolderId = folderId;
+                        root.VirtualPath = "/";
+                        builder.addFolder(root);
+                    } else {
+                        builder.addSubfolder(folderIds.get(dir.getParent()), folderId, dir.getFileName().toString());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException {
+                    if (!attributes.isRegularFile()) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    File file = new File();
+                    file.FileId = nextId[0]++;
+                    file.Filename = path.getFileName().toString();
+                    file.Length = attributes.size();
+                    file.CreationTimeUtc = attributes.creationTime().toInstant().toString();
+                    file.LastWriteTimeUtc = attributes.lastModifiedTime().toInstant().toString();
+                    if (computeHashes) {
+                        file.Hash = FileService.getSha256(path);
+                    }
+                    builder.addFile(folderIds.get(path.getParent()), file);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println(String.format("Could not scan '%s'", directory));
+            e.printStackTrace();
+            return null;
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the number of Folders
+     */
+    public int getFolderCount() {
+        return folderIds.length;
+    }
+
+    /**
+     * @return the number of Folders without a parent in the snapshot; they are the first Folders
+     */
+    public int getRootCount() {
+        return rootCount;
+    }
+
+    /**
+     * @return the number of Files
+     */
+    public int getFileCount() {
+        return fileIds.length;
+    }
+
+    /**
+     * @param folderId
+     *            the Folder ID
+     * @return the index of the Folder or -1 if it is not in the snapshot
+     */
+    public int findFolder(long folderId) {
+        return find(foldersById, folderIds, folderId);
+    }
+
+    /**
+     * @param fileId
+     *            the File ID
+     * @return the index of the File or -1 if it is not in the snapshot
+     */
+    public int findFile(long fileId) {
+        return find(filesById, fileIds, fileId);
+    }
+
+    /**
+     * @param folder
+     *            the index of the Folder, from 0 to {@link #getFolderCount()} - 1
+     * @return the Folder ID, which for a scanned directory is only unique within the snapshot
+     */
+    public long getFolderId(int folder) {
+        return folderIds[folder];
+    }
+
+    /**
+     * @return the index of the parent Folder or -1 for a root Folder
+     */
+    public int getParent(int folder) {
+        return folderParents[folder];
+    }
+
+    /**
+     * @param folder
+     *            the index of the Folder, from 0 to {@link #getFolderCount()} - 1
+     * @return the name or null if it is not known, e.g. for a root Folder listed without its name
+     */
+    public String getFolderName(int folder) {
+        return getString(folderNames[folder]);
+    }
+
+    /**
+     * Builds the virtual path of a Folder from the names of its parents.
+     *
+     * @return the virtual path ending with a separator
+     */
+    public String getFolderPath(int folder) {
+        StringBuilder path = new StringBuilder();
+        appendPath(path, folder);
+        return path.toString();
+    }
+
+    /**
+     * The subfolders of a Folder are adjacent, from this index to this index plus
+     * {@link #getSubfolderCount(int)} - 1.
+     *
+     * @param folder
+     *            the index of the Folder, from 0 to {@link #getFolderCount()} - 1
+     * @return the index of the first subfolder; if there are none, the index where they would be
+     */
+    public int getFirstSubfolder(int folder) {
+        return firstSubfolders[folder];
+    }
+
+    /**
+     * @param folder
+     *            the index of the Folder, from 0 to {@link #getFolderCount()} - 1
+     * @return the number of subfolders in the snapshot, 0 if there are none
+     */
+    public int getSubfolderCount(int folder) {
+        return firstSubfolders[folder + 1] - firstSubfolders[folder];
+    }
+
+    /**
+     * The Files of a Folder are adjacent, from this index to this index plus {@link #getFileCount(int)} - 1.
+     *
+     * @param folder
+     *            the index of the Folder, from 0 to {@link #getFolderCount()} - 1
+     * @return the index of the first File; if there are none, the index where they would be
+     */
+    public int getFirstFile(int folder) {
+        return firstFiles[folder];
+    }
+
+    /**
+     * @param folder
+     *            the index of the Folder, from 0 to {@link #getFolderCount()} - 1
+     * @return the number of Files directly in the Folder, 0 if there are none
+     */
+    public int getFileCount(int folder) {
+        return firstFiles[folder + 1] - firstFiles[folder];
+    }
+
+    /**
+     * @param file
+     *            the index of the File, from 0 to {@link #getFileCount()} - 1
+     * @return the File ID, which for a scanned directory is only unique within the snapshot
+     */
+    public long getFileId(int file) {
+        return fileIds[file];
+    }
+
+    /**
+     * @return the index of the Folder containing the File
+     */
+    public int getFileFolder(int file) {
+        return fileFolders[file];
+    }
+
+    /**
+     * @param file
+     *            the index of the File, from 0 to {@link #getFileCount()} - 1
+     * @return the file name or null if it is not known
+     */
+    public String getFileName(int file) {
+        return getString(fileNames[file]);
+    }
+
+    /**
+     * @param file
+     *            the index of the File, from 0 to {@link #getFileCount()} - 1
+     * @return the length in bytes, 0 if it is not known
+     */
+    public long getLength(int file) {
+        return lengths[file];
+    }
+
+    /**
+     * @return the latest version ID or null if it is not known
+     */
+    public String getLatestVersionId(int file) {
+        long versionId = versionIds[file];
+        if (versionId == Long.MIN_VALUE) {
+            return null;
+        }
+        return versionId >= 0 ? Long.toString(versionId) : getString((int) (-versionId - 1));
+    }
+
+    /**
+     * @return the creation time in epoch milliseconds or {@link #UNKNOWN_TIME}
+     */
+    public long getCreationTime(int file) {
+        return creationTimes[file];
+    }
+
+    /**
+     * @return the last write time in epoch milliseconds or {@link #UNKNOWN_TIME}
+     */
+    public long getLastWriteTime(int file) {
+        return lastWriteTimes[file];
+    }
+
+    /**
+     * @return the raw hash bytes, empty if the hash is not known
+     */
+    public byte[] getHashBytes(int file) {
+        int offset = file * HASH_BYTES;
+        return Arrays.copyOfRange(hashes, offset, offset + hashLengths[file]);
+    }
+
+    /**
+     * @return the lower-case hex hash or null if it is not known
+     */
+    public String getHash(int file) {
+        return hashLengths[file] == 0 ? null : HashHelper.toHexString(getHashBytes(file));
+    }
+
+    /**
+     * Compares the hashes of two Files without creating objects.
+     *
+     * @param file
+     *            a File of this snapshot
+     * @param other
+     *            the snapshot of the other File
+     * @param otherFile
+     *            the other File
+     * @return true if both hashes are known and equal
+     */
+    public boolean hashEquals(int file, CompactTree other, int otherFile) {
+        int length = hashLengths[file];
+        if (length == 0 || length != other.hashLengths[otherFile]) {
+            return false;
+        }
+        int offset = file * HASH_BYTES;
+        int otherOffset = otherFile * HASH_BYTES;
+        for (int i = 0; i < length; i++) {
+            if (hashes[offset + i] != other.hashes[otherOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the File at the given position in the order of File IDs
+     */
+    int getFileByIdRank(int rank) {
+        return filesById[rank];
+    }
+
+    /**
+     * @return the index of the Folder at the given position in the order of Folder IDs
+     */
+    int getFolderByIdRank(int rank) {
+        return foldersById[rank];
+    }
+
+    /**
+     * Compares the names of two Files without creating strings.
+     */
+    boolean fileNameEquals(int file, CompactTree other, int otherFile) {
+        return stringEquals(fileNames[file], other, other.fileNames[otherFile]);
+    }
+
+    /**
+     * Compares the names of two Folders without creating strings.
+     */
+    boolean folderNameEquals(int folder, CompactTree other, int otherFolder) {
+        return stringEquals(folderNames[folder], other, other.folderNames[otherFolder]);
+    }
+
+    /**
+     * Creates a Folder entity with its subfolders and Files.
+     */
+    public Folder toFolder(int folder) {
+        Folder entity = createFolder(folder);
+        entity.Folders = new Folder[getSubfolderCount(folder)];
+        for (int i = 0; i < entity.Folders.length; i++) {
+            entity.Folders[i] = createFolder(firstSubfolders[folder] + i);
+        }
+        entity.Files = new File[getFileCount(folder)];
+        for (int i = 0; i < entity.Files.length; i++) {
+            entity.Files[i] = toFile(firstFiles[folder] + i);
+        }
+        return entity;
+    }
+
+    /**
+     * Creates a File entity.
+     */
+    public File toFile(int file) {
+        File entity = new File();
+        entity.FileId = fileIds[file];
+        entity.FolderId = folderIds[fileFolders[file]];
+        entity.Filename = getFileName(file);
+        entity.VirtualPath = getFolderPath(fileFolders[file]);
+        entity.Length = lengths[file];
+        entity.Hash = getHash(file);
+        entity.LatestVersionId = getLatestVersionId(file);
+        entity.CreationTimeUtc = formatTime(creationTimes[file]);
+        entity.LastWriteTimeUtc = formatTime(lastWriteTimes[file]);
+        return entity;
+    }
+
+    /**
+     * @return the approximate number of bytes the snapshot takes in memory
+     */
+    public long getMemoryBytes() {
+        long folders = folderIds.length * (8L + 4 + 4 + 4 + 4 + 4);
+        long files = fileIds.length * (8L + 4 + 4 + 8 + 8 + 8 + 8 + HASH_BYTES + 1 + 4);
+        return folders + files + strings.length + stringOffsets.length * 4L;
+    }
+
+    private Folder createFolder(int folder) {
+        Folder entity = new Folder();
+        entity.FolderId = folderIds[folder];
+        entity.Name = getFolderName(folder);
+        entity.VirtualPath = getFolderPath(folder);
+        return entity;
+    }
+
+    private void appendPath(StringBuilder path, int folder) {
+        int parent = folderParents[folder];
+        if (parent < 0) {
+            int rootPath = rootPaths[folder];
+            path.append(rootPath >= 0 ? getString(rootPath) : String.valueOf(pathSeparator));
+            return;
+        }
+        appendPath(path, parent);
+        path.append(getFolderName(folder)).append(pathSeparator);
+    }
+
+    private String getString(int index) {
+        if (index < 0) {
+            return null;
+        }
+        int offset = stringOffsets[index];
+        return new String(strings, offset, stringOffsets[index + 1] - offset, StandardCharsets.UTF_8);
+    }
+
+    private boolean stringEquals(int index, CompactTree other, int otherIndex) {
+        if (index < 0 || otherIndex < 0) {
+            return index < 0 && otherIndex < 0;
+        }
+        int offset = stringOffsets[index];
+        int length = stringOffsets[index + 1] - offset;
+        int otherOffset = other.stringOffsets[otherIndex];
+        if (length != other.stringOffsets[otherIndex + 1] - otherOffset) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (strings[offset + i] != other.strings[otherOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int find(int[] sortedIndexes, long[] ids, long id) {
+        int low = 0;
+        int high = sortedIndexes.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = ids[sortedIndexes[middle]];
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return sortedIndexes[middle];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the positions of the elements ordered by parent (a stable counting sort),
+     * elements without a parent (-1) first.
+     *
+     * @param parents
+     *            the parent of every element, between -1 and parentCount - 1
+     * @param parentCount
+     *            the number of possible parents
+     */
+    private static int[] orderByParent(int[] parents, int parentCount) {
+        int[] starts = new int[parentCount + 2];
+        for (int parent : parents) {
+            starts[parent + 2]++;
+        }
+        for (int i = 1; i < starts.length; i++) {
+            starts[i] += starts[i - 1];
+        }
+        int[] order = new int[parents.length];
+        for (int i = 0; i < parents.length; i++) {
+            order[starts[parents[i] + 1]++] = i;
+        }
+        return order;
+    }
+
+    /**
+     * For elements ordered by parent, elements without a parent first, returns the index of
+     * the first child of every parent, with one extra entry so that the children of p are
+     * [first[p], first[p + 1]).
+     */
+    private static int[] firstIndexes(int[] parents, int parentCount) {
+        int[] first = new int[parentCount + 1];
+        int withoutParent = 0;
+        for (int parent : parents) {
+            if (parent < 0) {
+                withoutParent++;
+            } else {
+                first[parent + 1]++;
+            }
+        }
+        first[0] = withoutParent;
+        for (int i = 1; i < first.length; i++) {
+            first[i] += first[i - 1];
+        }
+        return first;
+    }
+
+    /**
+     * Returns the indexes of the elements ordered by ID (a merge sort without boxing).
+     */
+    private static int[] sortedIndexes(long[] ids) {
+        int[] sorted = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            sorted[i] = i;
+        }
+        int[] temp = new int[ids.length];
+        for (int width = 1; width < ids.length; width *= 2) {
+            for (int low = 0; low < ids.length - width; low += 2 * width) {
+                int middle = low + width;
+                int high = Math.min(low + 2 * width, ids.length);
+                int left = low;
+                int right = middle;
+                int target = low;
+                while (left < middle && right < high) {
+                    temp[target++] = ids[sorted[right]] < ids[sorted[left]] ? sorted[right++] : sorted[left++];
+                }
+                while (left < middle) {
+                    temp[target++] = sorted[left++];
+                }
+                while (right < high) {
+                    temp[target++] = sorted[right++];
+                }
+                System.arraycopy(temp, low, sorted, low, high - low);
+            }
+        }
+        return sorted;
+    }
+
+    private static String formatTime(long time) {
+        return time == UNKNOWN_TIME ? null : TIME_FORMAT.format(Instant.ofEpochMilli(time));
+    }
+
+    /**
+     * Collects Folders and Files into a {@link CompactTree}.
+     * Folders and Files may be added in any order, e.g. as a crawler finds them.
+     */
+    public static class Builder {
+        private final Map<Long, Integer> folderIndexes = new HashMap<>();
+        private final Map<String, Integer> stringIndexes = new HashMap<>();
+        private final Map<Long, String> rootPaths = new HashMap<>();
+        private char pathSeparator = '/';
+
+        private int folderCount;
+        private long[] folderIds = new long[16];
+        private long[] parentIds = new long[16];
+        private int[] folderNames = new int[16];
+
+        private int fileCount;
+        private long[] fileIds = new long[16];
+        private int[] fileFolders = new int[16];
+        private int[] fileNames = new int[16];
+        private long[] lengths = new long[16];
+        private long[] versionIds = new long[16];
+        private long[] creationTimes = new long[16];
+        private long[] lastWriteTimes = new long[16];
+        private byte[] hashes = new byte[16 * HASH_BYTES];
+        private byte[] hashLengths = new byte[16];
+
+        private int stringCount;
+        private int stringsLength;
+        private byte[] strings = new byte[1024];
+        private int[] stringOffsets = new int[17];
+
+        /**
+         * Adds a listed Folder and registers its subfolders. The parent of a Folder is known once
+         * the Folder is listed as a subfolder of another one; a Folder that is never listed as a subfolder
+         * is a root, and the virtual path of its listing is kept to derive the paths below it.
+         *
+         * @param folder
+         *            the {@link Folder} listing, e.g. as returned by {@link FolderService#getFolder(long, long, boolean)}
+         */
+        public Builder addFolder(Folder folder) {
+            int index = getFolder(folder.FolderId);
+            if (folder.Name != null) {
+                folderNames[index] = intern(folder.Name);
+            }
+            if (folder.VirtualPath != null && !folder.VirtualPath.isEmpty()) {
+                rootPaths.put(folder.FolderId, folder.VirtualPath);
+                char last = folder.VirtualPath.charAt(folder.VirtualPath.length() - 1);
+                if (last == '/' || last == '\\') {
+                    pathSeparator = last;
+                }
+            }
+            if (folder.Folders != null) {
+                for (Folder subfolder : folder.Folders) {
+                    int subfolderIndex = getFolder(subfolder.FolderId);
+                    parentIds[subfolderIndex] = folder.FolderId;
+                    if (subfolder.Name != null) {
+                        folderNames[subfolderIndex] = intern(subfolder.Name);
+                    }
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Adds a Folder below another one without a listing of either.
+         *
+         * @param parentFolderId
+         *            the parent Folder ID
+         * @param folderId
+         *            the Folder ID
+         * @param name
+         *            the Folder name
+         */
+        public Builder addSubfolder(long parentFolderId, long folderId, String name) {
+            int index = getFolder(folderId);
+            parentIds[index] = parentFolderId;
+            if (name != null) {
+                folderNames[index] = intern(name);
+            }
+            return this;
+        }
+
+        /**
+         * Adds a File.
+         *
+         * @param folderId
+         *            the ID of the Folder containing the File
+         * @param file
+         *            the {@link File} info
+         */
+        public Builder addFile(long folderId, File file) {
+            if (fileCount == fileIds.length) {
+                int capacity = fileCount * 2;
+                fileIds = Arrays.copyOf(fileIds, capacity);
+                fileFolders = Arrays.copyOf(fileFolders, capacity);
+                fileNames = Arrays.copyOf(fileNames, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                versionIds = Arrays.copyOf(versionIds, capacity);
+                creationTimes = Arrays.copyOf(creationTimes, capacity);
+                lastWriteTimes = Arrays.copyOf(lastWriteTimes, capacity);
+                hashes = Arrays.copyOf(hashes, capacity * HASH_BYTES);
+                hashLengths = Arrays.copyOf(hashLengths, capacity);
+            }
+            int index = fileCount++;
+            fileIds[index] = file.FileId;
+            fileFolders[index] = getFolder(folderId);
+            fileNames[index] = file.Filename == null ? -1 : intern(file.Filename);
+            lengths[index] = file.Length;
+            versionIds[index] = encodeVersionId(file.LatestVersionId);
+            creationTimes[index] = parseTime(file.CreationTimeUtc);
+            lastWriteTimes[index] = parseTime(file.LastWriteTimeUtc);
+            hashLengths[index] = (byte) parseHash(file.Hash, hashes, index * HASH_BYTES);
+            return this;
+        }
+
+        /**
+         * Creates the snapshot. The builder should not be used afterwards.
+         */
+        public CompactTree build() {
+            return new CompactTree(this);
+        }
+
+        private int getFolder(long folderId) {
+            Integer index = folderIndexes.get(folderId);
+            if (index != null) {
+                return index;
+            }
+            if (folderCount == folderIds.length) {
+                int capacity = folderCount * 2;
+                folderIds = Arrays.copyOf(folderIds, capacity);
+                parentIds = Arrays.copyOf(parentIds, capacity);
+                folderNames = Arrays.copyOf(folderNames, capacity);
+            }
+            int newIndex = folderCount++;
+            folderIds[newIndex] = folderId;
+            parentIds[newIndex] = folderId;
+            folderNames[newIndex] = -1;
+            folderIndexes.put(folderId, newIndex);
+            return newIndex;
+        }
+
+        private int intern(String value) {
+            Integer index = stringIndexes.get(value);
+            if (index != null) {
+                return index;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (stringsLength + bytes.length > strings.length) {
+                strings = Arrays.copyOf(strings, Math.max(strings.length * 2, stringsLength + bytes.length));
+            }
+            if (stringCount + 2 > stringOffsets.length) {
+                stringOffsets = Arrays.copyOf(stringOffsets, stringOffsets.length * 2);
+            }
+            System.arraycopy(bytes, 0, strings, stringsLength, bytes.length);
+            stringOffsets[stringCount] = stringsLength;
+            stringsLength += bytes.length;
+            stringOffsets[stringCount + 1] = stringsLength;
+            stringIndexes.put(value, stringCount);
+            return stringCount++;
+        }
+
+        /**
+         * Keeps numeric version IDs as they are and others as negative string indexes.
+         */
+        private long encodeVersionId(String versionId) {
+            if (versionId == null) {
+                return Long.MIN_VALUE;
+            }
+            try {
+                long numeric = Long.parseLong(versionId);
+                if (numeric >= 0 && Long.toString(numeric).equals(versionId)) {
+                    return numeric;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+            return -1L - intern(versionId);
+        }
+
+        /**
+         * Decodes a hex hash of up to 32 bytes; other hashes are not kept.
+         *
+         * @return the number of hash bytes
+         */
+        private static int parseHash(String hash, byte[] target, int offset) {
+            if (hash == null || hash.isEmpty() || hash.length() % 2 != 0 || hash.length() > HASH_BYTES * 2) {
+                return 0;
+            }
+            for (int i = 0; i < hash.length(); i += 2) {
+                int high = Character.digit(hash.charAt(i), 16);
+                int low = Character.digit(hash.charAt(i + 1), 16);
+                if (high < 0 || low < 0) {
+                    return 0;
+                }
+                target[offset + i / 2] = (byte) (high << 4 | low);
+            }
+            return hash.length() / 2;
+        }
+
+        /**
+         * Parses the ISO 8601 and "/Date(millis)/" formats the API uses.
+         */
+        private static long parseTime(String time) {
+            if (time == null || time.isEmpty()) {
+                return UNKNOWN_TIME;
+            }
+            try {
+                if (time.startsWith("/Date(")) {
+                    int end = time.indexOf(')');
+                    String millis = time.substring(6, end);
+                    int offset = Math.max(millis.indexOf('+', 1), millis.indexOf('-', 1));
+                    return Long.parseLong(offset > 0 ? millis.substring(0, offset) : millis);
+                }
+                return OffsetDateTime.parse(time).toInstant().toEpochMilli();
+            } catch (RuntimeException e) {
+                try {
+                    return SHORT_TIME_FORMAT.parse(time, Instant::from).toEpochMilli();
+                } catch (DateTimeParseException ignored) {
+                    return UNKNOWN_TIME;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package services;
+
+import entities.File;
+import org.apache.commons.lang.StringUtils;
+import util.ConfigurationHelper;
+import util.HashHelper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local cache of downloaded file versions.
+ * <p>
+ * File versions never change, so a downloaded version is stored under its SyncPoint ID
+ * and version ID and served from disk on subsequent downloads. Versions are downloaded
+ * to a temporary file, verified against the File hash by {@link FileService}
+ * and only then moved into the cache, so a cache entry is always complete.
+ * Concurrent requests for the same version share a single download.
+ * When the cache grows beyond its size limit, the least recently used versions are removed.
+ */
+public class DownloadCache {
+
+    private static final String TEMP_DIRECTORY = ".tmp";
+    private static final long BYTES_PER_MEGABYTE = 1024L * 1024;
+
+    private static DownloadCache defaultCache = null;
+    private static boolean defaultCacheResolved = false;
+
+    private final Path directory;
+    private final Path tempDirectory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Boolean>> pendingDownloads = new ConcurrentHashMap<>();
+    private long totalBytes;
+
+    /**
+     * Loads the contents of a File version into a temporary file.
+     */
+    public interface Loader {
+        /**
+         * @param target
+         *            the temporary file to write the contents to
+         * @return true if the contents were downloaded and verified
+         */
+        boolean load(Path target);
+    }
+
+    /**
+     * Opens (or creates) a download cache in a directory.
+     *
+     * @param directory
+     *            the cache directory
+     * @param maxBytes
+     *            the maximum total size of the cached versions
+     */
+    public DownloadCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory.toAbsolutePath();
+        this.tempDirectory = this.directory.resolve(TEMP_DIRECTORY);
+        this.maxBytes = maxBytes;
+        Files.createDirectories(tempDirectory);
+        cleanTempDirectory();
+        loadEntries();
+    }
+
+    /**
+     * Returns the cache configured with the downloadCacheDirectory setting.
+     *
+     * @return the shared cache or null if no cache is configured or it cannot be opened
+     */
+    public static synchronized DownloadCache getDefault() {
+        if (!defaultCacheResolved) {
+            defaultCacheResolved = true;
+            String path = ConfigurationHelper.getDownloadCacheDirectory();
+            if (StringUtils.isNotBlank(path)) {
+                try {
+                    defaultCache = new DownloadCache(Paths.get(path),
+                            ConfigurationHelper.getDownloadCacheMaxMegabytes() * BYTES_PER_MEGABYTE);
+                } catch (IOException e) {
+                    System.err.println(String.format("Could not open download cache '%s'", path));
+                    e.printStackTrace();
+                }
+            }
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Indicates whether a File version can be cached.
+     *
+     * @param file
+     *            the {@link File} info
+     * @return true if the File has a version ID and fits into the cache
+     */
+    public boolean accepts(File file) {
+        return file.LatestVersionId != null && file.Length <= maxBytes;
+    }
+
+    /**
+     * Returns the cached contents of a File version, downloading them with the loader if they are not cached.
+     * Only one download of a version runs at a time; other callers wait for it and share its result.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param file
+     *            the {@link File} info with at least LatestVersionId and Length
+     * @param loader
+     *            downloads the version if it is not cached
+     * @return the cached file or null if the version could not be downloaded or is too large to cache
+     */
+    public Path get(long syncPointId, File file, Loader loader) {
+        if (!accepts(file)) {
+            return null;
+        }
+        String key = getKey(syncPointId, file.LatestVersionId);
+        Path entry = directory.resolve(key);
+        if (touch(key, entry)) {
+            return entry;
+        }
+
+        CompletableFuture<Boolean> download = new CompletableFuture<>();
+        CompletableFuture<Boolean> pendingDownload = pendingDownloads.putIfAbsent(key, download);
+        if (pendingDownload != null) {
+            return pendingDownload.join() ? entry : null;
+        }
+
+        boolean loaded = false;
+        try {
+            // another caller may have published the version while this one was checking
+            if (touch(key, entry)) {
+                loaded = true;
+                return entry;
+            }
+            loaded = load(key, entry, loader);
+            return loaded ? entry : null;
+        } finally {
+            pendingDownloads.remove(key);
+            download.complete(loaded);
+        }
+    }
+
+    private boolean load(String key, Path entry, Loader loader) {
+        Path temp = tempDirectory.resolve(UUID.randomUUID().toString());
+        try {
+            if (!loader.load(temp)) {
+                return false;
+            }
+            Files.createDirectories(entry.getParent());
+            long size = Files.size(temp);
+            try {
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // versions are immutable, so an existing entry has the same contents
+            }
+            add(key, size);
+            return true;
+        } catch (IOException e) {
+            System.err.println(String.format("Could not add %s to the download cache", key));
+            e.printStackTrace();
+            return false;
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    private synchronized boolean touch(String key, Path entry) {
+        if (entries.get(key) == null) {
+            return false;
+        }
+        try {
+            // the modification time keeps the usage order across runs
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (IOException e) {
+            // the entry was removed from disk behind the cache's back
+            totalBytes -= entries.remove(key);
+            return false;
+        }
+    }
+
+    private synchronized void add(String key, long size) {
+        Long previousSize = entries.put(key, size);
+        totalBytes += size - (previousSize == null ? 0 : previousSize);
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            deleteQuietly(directory.resolve(eldest.getKey()));
+            totalBytes -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    private void loadEntries() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> syncPoints = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path syncPoint : syncPoints) {
+                if (syncPoint.equals(tempDirectory)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> versions = Files.newDirectoryStream(syncPoint, Files::isRegularFile)) {
+                    for (Path version : versions) {
+                        files.add(version);
+                    }
+                }
+            }
+        }
+
+        Map<Path, BasicFileAttributes> attributes = new LinkedHashMap<>();
+        for (Path file : files) {
+            attributes.put(file, Files.readAttributes(file, BasicFileAttributes.class));
+        }
+        files.sort(Comparator.comparing(file -> attributes.get(file).lastModifiedTime()));
+
+        synchronized (this) {
+            for (Path file : files) {
+                String key = directory.relativize(file).toString().replace('\\', '/');
+                long size = attributes.get(file).size();
+                entries.put(key, size);
+                totalBytes += size;
+            }
+            evict();
+        }
+    }
+
+    private void cleanTempDirectory() throws IOException {
+        try (DirectoryStream<Path> tempFiles = Files.newDirectoryStream(tempDirectory)) {
+            for (Path tempFile : tempFiles) {
+                deleteQuietly(tempFile);
+            }
+        }
+    }
+
+    private static String getKey(long syncPointId, String versionId) {
+        // hex keeps every version ID distinct and safe to use as a file name
+        return syncPointId + "/" + HashHelper.toHexString(versionId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+        }
+    }
+}
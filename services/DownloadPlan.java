@@ -0,0 +1,107 @@
+package services;
+
+import entities.File;
+import entities.StorageEndpoint;
+import entities.SyncPoint;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves and caches the storage endpoint URLs files are downloaded from.
+ * <p>
+ * The storage endpoint list is retrieved once and indexed by ID,
+ * and the storage endpoint URL of each SyncPoint is resolved on first use,
+ * so downloading files whose {@link File} info is already known
+ * (e.g. from a folder listing) costs a single request per file.
+ */
+public class DownloadPlan {
+
+    private final Map<Long, String> storageEndpointUrls = new ConcurrentHashMap<>();
+    private volatile Map<String, StorageEndpoint> storageEndpoints;
+
+    /**
+     * Returns the storage URL of the latest version of a File.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param file
+     *            the {@link File} info
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return the download URL or null if it could not be resolved
+     */
+    public String getDownloadUrl(long syncPointId, File file, boolean suppressErrors) {
+        String storageEndpointUrl = getStorageEndpointUrl(syncPointId, suppressErrors);
+        if (storageEndpointUrl == null) {
+            return null;
+        }
+        return String.format(FileService.downloadUrl, storageEndpointUrl, syncPointId, file.LatestVersionId);
+    }
+
+    /**
+     * Returns the URL of the storage endpoint a SyncPoint is stored in.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return the storage endpoint URL or null if it could not be resolved
+     */
+    public String getStorageEndpointUrl(long syncPointId, boolean suppressErrors) {
+        String storageEndpointUrl = storageEndpointUrls.get(syncPointId);
+        if (storageEndpointUrl != null) {
+            return storageEndpointUrl;
+        }
+
+        SyncPoint syncPoint = SyncPointService.getSyncPoint(syncPointId, suppressErrors);
+        if (syncPoint == null) {
+            return null;
+        }
+        StorageEndpoint storageEndpoint = getStorageEndpoint(syncPoint.StorageEndpointId);
+        if (storageEndpoint == null) {
+            if (!suppressErrors) {
+                System.err.println(String.format("Could not find active storage endpoint with id %s",
+                        syncPoint.StorageEndpointId));
+            }
+            return null;
+        }
+
+        storageEndpointUrl = storageEndpoint.Urls[0].Url;
+        storageEndpointUrls.put(syncPointId, storageEndpointUrl);
+        return storageEndpointUrl;
+    }
+
+    /**
+     * Retrieves an active Storage Endpoint by ID.
+     *
+     * @param storageEndpointId
+     *            the Storage Endpoint ID
+     * @return the matching {@link StorageEndpoint} object or null if there is no such active endpoint
+     */
+    public StorageEndpoint getStorageEndpoint(String storageEndpointId) {
+        Map<String, StorageEndpoint> endpoints = storageEndpoints;
+        if (endpoints == null) {
+            endpoints = new HashMap<>();
+            for (StorageEndpoint storageEndpoint : StorageEndpointService.getStorageEndpoints(true)) {
+                if (storageEndpoint.Active && storageEndpoint.Urls != null && storageEndpoint.Urls.length > 0) {
+                    endpoints.put(storageEndpoint.Id, storageEndpoint);
+                }
+            }
+            // an empty list is most likely a failed request, so let the next call retry it
+            if (!endpoints.isEmpty()) {
+                storageEndpoints = endpoints;
+            }
+        }
+        return storageEndpointId == null ? null : endpoints.get(storageEndpointId);
+    }
+
+    /**
+     * Forgets all resolved storage endpoints, e.g. after SyncPoints were moved to another storage.
+     */
+    public void invalidate() {
+        storageEndpoints = null;
+        storageEndpointUrls.clear();
+    }
+}
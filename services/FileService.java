@@ -1,27 +1,55 @@
 package services;
 
 import entities.File;
-import entities.StorageEndpoint;
-import entities.SyncPoint;
 import util.APIContext;
 import util.APIGateway;
+import util.BandwidthThrottle;
+import util.BufferPool;
 import util.ConfigurationHelper;
+import util.ExecutionLane;
+import util.FileHashCache;
+import util.HashHelper;
+import util.RequestBodyWriter;
+import util.SpoolBuffer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.URLConnection;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 /**
  * A service for retrieving File data.
@@ -32,6 +60,10 @@ public class FileService extends APIGateway {
     private static final String CRLF = "\r\n";
     private static final String BOUNDARY = "-------" + String.valueOf(System.currentTimeMillis());
     private static final String TWO_HYPHENS = "--";
+    private static final String SHA256_PLACEHOLDER = String.format("%064d", 0);
+    private static final long MIN_SEGMENT_SIZE = 8L * 1024 * 1024;
+    // streams larger than this are spilled to disk, whatever the configured memory buffer
+    private static final int MAX_MEMORY_BUFFER = 256 * 1024 * 1024;
 
     /**
      * Files service URL.
@@ -53,6 +85,11 @@ public class FileService extends APIGateway {
      */
     protected static String downloadUrl;
 
+    /**
+     * Resolved storage endpoints of the SyncPoints files are downloaded from.
+     */
+    private static final DownloadPlan downloadPlan = new DownloadPlan();
+
     static {
         filesUrl = ConfigurationHelper.getBaseApiEndpointUrl() + "sync/file.svc/%s/file/%s";
         fileUrl = ConfigurationHelper.getBaseApiEndpointUrl() + "sync/file.svc/%s/file/%s";
@@ -60,6 +97,32 @@ public class FileService extends APIGateway {
         downloadUrl = "%s/v2/files?syncpoint_id=%s&file_version_id=%s";
     }
 
+    /**
+     * Returns the download plan shared by all downloads,
+     * e.g. to invalidate the resolved storage endpoints.
+     *
+     * @return the shared {@link DownloadPlan}
+     */
+    public static DownloadPlan getDownloadPlan() {
+        return downloadPlan;
+    }
+
+    /**
+     * Deletes a File.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param file
+     *            the {@link File} with at least FileId; its VirtualPath, if known, is forgotten by the path index
+     */
+    public static void deleteFile(long syncPointId, File file) {
+        httpDelete(String.format(fileUrl, syncPointId, file.FileId), File.class);
+        PathIndex pathIndex = PathIndex.getDefault();
+        if (file.VirtualPath != null && pathIndex != null) {
+            pathIndex.invalidate(syncPointId, file.VirtualPath);
+        }
+    }
+
     /**
      * Retrieves File info.
      * 
@@ -84,45 +147,771 @@ public class FileService extends APIGateway {
      *            the File ID
      * @param suppressErrors
      *            indicates whether the errors should be suppressed
-     * @return the File contents as a string
+     * @return the File contents as a UTF-8 string
      */
     public static String downloadFile(long syncPointId, long fileId, boolean suppressErrors) {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        if (!downloadFile(syncPointId, fileId, contents, suppressErrors)) {
+            return null;
+        }
+        return new String(contents.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Downloads a File to a local path.
+     * The content is streamed to a temporary file next to the target,
+     * which replaces the target once the download is complete and its SHA-256 hash
+     * matches the File hash. If a previous download of the same version of the File was
+     * interrupted, the download continues from the bytes already in the temporary file.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param fileId
+     *            the File ID
+     * @param target
+     *            the local file to write the contents to
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return true if the File was downloaded and verified
+     */
+    public static boolean downloadFile(long syncPointId, long fileId, Path target, boolean suppressErrors) {
+        File file = getFileForDownload(syncPointId, fileId, suppressErrors);
+        return file != null && downloadFile(syncPointId, file, target, suppressErrors);
+    }
+
+    /**
+     * Downloads a File to a local path without retrieving the File info first.
+     * The {@link File} info is typically taken from a folder listing, so the download
+     * costs a single request once the storage endpoint of the SyncPoint is resolved,
+     * and no request at all if the version is in the configured {@link DownloadCache}.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param file
+     *            the {@link File} info with at least LatestVersionId, Length and Hash
+     * @param target
+     *            the local file to write the contents to
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return true if the File was downloaded and verified
+     * @see #downloadFile(long, long, Path, boolean)
+     */
+    public static boolean downloadFile(long syncPointId, File file, Path target, boolean suppressErrors) {
+        DownloadCache downloadCache = DownloadCache.getDefault();
+        if (downloadCache != null && downloadCache.accepts(file)) {
+            Path cached = downloadCache.get(syncPointId, file, temp -> fetchFile(syncPointId, file, temp, suppressErrors));
+            if (cached == null) {
+                return false;
+            }
+            Path tempFile = getTempFile(target);
+            try {
+                Files.copy(cached, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            } catch (IOException e) {
+                // the version was evicted while it was being copied, download it directly
+                deleteQuietly(tempFile);
+            }
+        }
+        return fetchFile(syncPointId, file, target, suppressErrors);
+    }
+
+    /**
+     * Downloads a File to a local path, bypassing the download cache.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param file
+     *            the {@link File} info
+     * @param target
+     *            the local file to write the contents to
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return true if the File was downloaded and verified
+     */
+    private static boolean fetchFile(long syncPointId, File file, Path target, boolean suppressErrors) {
+        String url = getDownloadUrl(syncPointId, file, suppressErrors);
+        if (url == null) {
+            return false;
+        }
+
+        Path partFile = getPartFile(target);
+        Path versionFile = getPartVersionFile(target);
+        preparePartFile(partFile, versionFile, file.LatestVersionId);
+        MessageDigest digest = HashHelper.newSha256();
+        ExecutionLane.TRANSFER.enter();
+        try (FileChannel out = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long offset = out.size();
+            HttpURLConnection request = null;
+            if (offset > 0 && offset < file.Length) {
+                System.out.println(String.format("Resuming the download of '%s' from byte %d", target, offset));
+                request = openRangeDownload(url, offset, -1, true);
+            }
+            if (request == null && offset != file.Length) {
+                // nothing to resume from or the storage endpoint cannot continue the download
+                offset = 0;
+                request = openDownload(url, suppressErrors);
+                if (request == null) {
+                    return false;
+                }
+            }
+
+            out.truncate(offset);
+            updateDigest(digest, out, offset);
+            if (request != null) {
+                out.position(offset);
+                try (InputStream in = request.getInputStream()) {
+                    transfer(in, out, digest, url);
+                }
+            }
+            out.force(false);
+        } catch (IOException e) {
+            if (!suppressErrors) {
+                System.err.println(String.format("Could not download the file to '%s'", target));
+                e.printStackTrace();
+            }
+            return false;
+        } finally {
+            ExecutionLane.TRANSFER.exit();
+        }
+
+        boolean completed = completeDownload(partFile, target, file, HashHelper.toHexString(digest.digest()),
+                suppressErrors);
+        deleteQuietly(versionFile);
+        return completed;
+    }
+
+    /**
+     * Downloads a File to an output stream.
+     * The stream is not closed.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param fileId
+     *            the File ID
+     * @param out
+     *            the stream to write the contents to
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return true if the File was downloaded
+     */
+    public static boolean downloadFile(long syncPointId, long fileId, OutputStream out, boolean suppressErrors) {
+        File file = getFileForDownload(syncPointId, fileId, suppressErrors);
+        return file != null && downloadFile(syncPointId, file, out, suppressErrors);
+    }
+
+    /**
+     * Downloads a File to an output stream without retrieving the File info first.
+     * The version is served from the configured {@link DownloadCache} if it is cached.
+     * The stream is not closed.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param file
+     *            the {@link File} info with at least LatestVersionId and Hash
+     * @param out
+     *            the stream to write the contents to
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return true if the File was downloaded and verified
+     * @see #downloadFile(long, File, Path, boolean)
+     */
+    public static boolean downloadFile(long syncPointId, File file, OutputStream out, boolean suppressErrors) {
+        DownloadCache downloadCache = DownloadCache.getDefault();
+        if (downloadCache != null && downloadCache.accepts(file)) {
+            Path cached = downloadCache.get(syncPointId, file, temp -> fetchFile(syncPointId, file, temp, suppressErrors));
+            if (cached == null) {
+                return false;
+            }
+            try {
+                transfer(cached, out);
+                out.flush();
+                return true;
+            } catch (NoSuchFileException e) {
+                // the version was evicted before it could be read, download it directly
+            } catch (IOException e) {
+                if (!suppressErrors) {
+                    System.err.println("Could not read the file from the download cache.");
+                    e.printStackTrace();
+                }
+                return false;
+            }
+        }
+
+        String url = getDownloadUrl(syncPointId, file, suppressErrors);
+        if (url == null) {
+            return false;
+        }
+
+        MessageDigest digest = HashHelper.newSha256();
+        ExecutionLane.TRANSFER.enter();
+        try {
+            HttpURLConnection request = openDownload(url, suppressErrors);
+            if (request == null) {
+                return false;
+            }
+            try (InputStream in = request.getInputStream()) {
+                transfer(in, Channels.newChannel(out), digest, url);
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (!suppressErrors) {
+                System.err.println("Could not download the file.");
+                e.printStackTrace();
+            }
+            return false;
+        } finally {
+            ExecutionLane.TRANSFER.exit();
+        }
+        return verifyHash(file, HashHelper.toHexString(digest.digest()), suppressErrors);
+    }
+
+    /**
+     * Opens a read-only channel over the contents of a File.
+     * Only the parts of the File that are actually read are downloaded.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param fileId
+     *            the File ID
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return the channel or null if the File could not be found
+     */
+    public static SeekableByteChannel openFileChannel(long syncPointId, long fileId, boolean suppressErrors) {
+        File file = getFileForDownload(syncPointId, fileId, suppressErrors);
+        return file == null ? null : openFileChannel(syncPointId, file, suppressErrors);
+    }
+
+    /**
+     * Opens a read-only channel over the contents of a File without retrieving the File info first.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param file
+     *            the {@link File} info with at least LatestVersionId and Length
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return the channel or null if the storage endpoint of the SyncPoint could not be resolved
+     */
+    public static SeekableByteChannel openFileChannel(long syncPointId, File file, boolean suppressErrors) {
+        String url = getDownloadUrl(syncPointId, file, suppressErrors);
+        return url == null ? null : new RemoteFileChannel(url, file.Length);
+    }
+
+    /**
+     * Downloads a File to a local path as several byte ranges fetched in parallel.
+     * The number and size of the segments are chosen from the File length;
+     * small files are downloaded with a single request.
+     * Each segment is written at its offset into a preallocated temporary file,
+     * which replaces the target once all segments are complete.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param fileId
+     *            the File ID
+     * @param target
+     *            the local file to write the contents to
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return true if the File was downloaded
+     */
+    public static boolean downloadFileSegmented(long syncPointId, long fileId, Path target,
+                                                boolean suppressErrors) {
+        File file = getFileForDownload(syncPointId, fileId, suppressErrors);
+        if (file == null) {
+            return false;
+        }
+        int segmentCount = getSegmentCount(file.Length);
+        if (segmentCount < 2) {
+            return downloadFile(syncPointId, file, target, suppressErrors);
+        }
+        String url = getDownloadUrl(syncPointId, file, suppressErrors);
+        if (url == null) {
+            return false;
+        }
+
+        long segmentSize = (file.Length + segmentCount - 1) / segmentCount;
+        // not the resumable part file: the segments leave holes in the preallocated file
+        Path partFile = getTempFile(target);
+        ExecutorService executor = Executors.newFixedThreadPool(segmentCount);
+        try (RandomAccessFile preallocated = new RandomAccessFile(partFile.toFile(), "rw")) {
+            preallocated.setLength(file.Length);
+            FileChannel out = preallocated.getChannel();
+
+            List<Future<Long>> segments = new ArrayList<>();
+            for (long start = 0; start < file.Length; start += segmentSize) {
+                long end = Math.min(start + segmentSize, file.Length) - 1;
+                long segmentStart = start;
+                segments.add(executor.submit(() -> downloadSegment(url, segmentStart, end, out)));
+            }
+            for (Future<Long> segment : segments) {
+                segment.get();
+            }
+            out.force(false);
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            executor.shutdownNow();
+            deleteQuietly(partFile);
+            if (!suppressErrors) {
+                System.err.println(String.format("Could not download the file to '%s'", target));
+                e.printStackTrace();
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        } finally {
+            executor.shutdown();
+        }
+
+        String sha256 = null;
+        if (isSha256(file.Hash)) {
+            try {
+                sha256 = HashHelper.sha256(partFile);
+            } catch (IOException e) {
+                if (!suppressErrors) {
+                    System.err.println(String.format("Could not verify the file downloaded to '%s'", target));
+                    e.printStackTrace();
+                }
+                return false;
+            }
+        }
+        return completeDownload(partFile, target, file, sha256, suppressErrors);
+    }
+
+    /**
+     * Chooses how many parallel segments to download a File of the given length with.
+     *
+     * @param length
+     *            the File length in bytes
+     * @return the number of segments, 1 if the File should be downloaded with a single request
+     */
+    private static int getSegmentCount(long length) {
+        long segments = length / MIN_SEGMENT_SIZE;
+        return (int) Math.max(1, Math.min(segments, ConfigurationHelper.getMaxDownloadSegments()));
+    }
+
+    /**
+     * Downloads a byte range of a File and writes it at the same offset of the target channel.
+     *
+     * @param url
+     *            the download URL
+     * @param start
+     *            the first byte of the range
+     * @param end
+     *            the last byte of the range (inclusive)
+     * @param out
+     *            the channel to write to
+     * @return the number of bytes written
+     */
+    private static long downloadSegment(String url, long start, long end, FileChannel out) throws IOException {
+        long position = start;
+        ByteBuffer buffer = null;
+        ExecutionLane.TRANSFER.enter();
+        try {
+            HttpURLConnection request = openRangeDownload(url, start, end, false);
+            if (request == null) {
+                throw new IOException(String.format("Could not download bytes %d-%d of %s", start, end, url));
+            }
+            buffer = BufferPool.getDefault().acquire();
+            try (InputStream in = request.getInputStream()) {
+                ReadableByteChannel source = Channels.newChannel(in);
+                int read;
+                while (position <= end && (read = source.read(buffer)) != -1) {
+                    BandwidthThrottle.consume(url, read);
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position += out.write(buffer, position);
+                    }
+                    buffer.clear();
+                }
+            }
+        } finally {
+            BufferPool.getDefault().release(buffer);
+            ExecutionLane.TRANSFER.exit();
+        }
+        if (position != end + 1) {
+            throw new IOException(String.format("Received %d bytes instead of %d for bytes %d-%d of %s",
+                    position - start, end - start + 1, start, end, url));
+        }
+        return position - start;
+    }
+
+    /**
+     * Retrieves File info needed to download a File.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param fileId
+     *            the File ID
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return the {@link File} info or null if the File was not found
+     */
+    private static File getFileForDownload(long syncPointId, long fileId, boolean suppressErrors) {
         File file = getFile(syncPointId, fileId, true);
-        SyncPoint syncPoint = SyncPointService.getSyncPoint(syncPointId, suppressErrors);
-        StorageEndpoint storageEndpoint = getStorageEndpoint(syncPoint.StorageEndpointId);
+        if (file == null && !suppressErrors) {
+            System.err.println(String.format("Could not find file with SyncPointId=%s and FileId=%s",
+                    syncPointId, fileId));
+        }
+        return file;
+    }
 
-        String url = String.format(downloadUrl, storageEndpoint.Urls[0].Url, syncPointId, file.LatestVersionId);
+    /**
+     * Resolves the storage URL of the latest version of a File.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param file
+     *            the {@link File} info
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return the download URL or null if it could not be resolved
+     */
+    private static String getDownloadUrl(long syncPointId, File file, boolean suppressErrors) {
+        return downloadPlan.getDownloadUrl(syncPointId, file, suppressErrors);
+    }
 
+    /**
+     * Sends a download request to the storage endpoint.
+     *
+     * @param url
+     *            the download URL
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return the connection to read the File contents from or null if the request failed
+     */
+    private static HttpURLConnection openDownload(String url, boolean suppressErrors) {
+        return httpGetStream(url, createStorageHeaders(), suppressErrors, useMachineAccessToken());
+    }
+
+    /**
+     * Sends a download request for a byte range to the storage endpoint.
+     *
+     * @param url
+     *            the download URL
+     * @param start
+     *            the first byte of the range
+     * @param end
+     *            the last byte of the range (inclusive), or a negative value for the rest of the File
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return the connection to read the range from or null if the request failed
+     *         or the storage endpoint ignored the range
+     */
+    static HttpURLConnection openRangeDownload(String url, long start, long end, boolean suppressErrors) {
+        Map<String, String> additionalHeaders = createStorageHeaders();
+        additionalHeaders.put("Range", "bytes=" + start + "-" + (end < 0 ? "" : String.valueOf(end)));
+
+        HttpURLConnection request = httpGetStream(url, additionalHeaders, suppressErrors, useMachineAccessToken());
+        if (request == null) {
+            return null;
+        }
+        try {
+            if (request.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                if (!suppressErrors) {
+                    System.err.println(String.format("The storage endpoint did not return a partial response for %s",
+                            url));
+                }
+                request.disconnect();
+                return null;
+            }
+        } catch (IOException e) {
+            request.disconnect();
+            return null;
+        }
+        return request;
+    }
+
+    /**
+     * Creates the headers needed to access a Storage Vault.
+     *
+     * @return the headers map
+     */
+    private static Map<String, String> createStorageHeaders() {
         Map<String, String> additionalHeaders = new HashMap<>();
-        boolean useMachineAccessTokenInsteadOfUserAccessToken = false;
-        if(ConfigurationHelper.isMachineTokenAuthenticationEnabledForStorageVaults()) {
+        if (useMachineAccessToken()) {
             additionalHeaders.put("Syncplicity-Storage-Authorization", ConfigurationHelper.getStorageToken());
-            useMachineAccessTokenInsteadOfUserAccessToken = true;
         }
+        return additionalHeaders;
+    }
 
-        return httpGet(
-                url,
-                additionalHeaders,
-                String.class,
-                false,
-                useMachineAccessTokenInsteadOfUserAccessToken);
+    /**
+     * Indicates whether storage calls are authenticated with the machine access token (SVA case).
+     */
+    private static boolean useMachineAccessToken() {
+        return ConfigurationHelper.isMachineTokenAuthenticationEnabledForStorageVaults();
     }
 
     /**
-     * Retrieves a Storage Endpoint by ID.
-     * 
-     * @param storageEndpointId
-     *            the Storage Endpoint ID
-     * @return the matching {@link StorageEndpoint} object
+     * Verifies a completed download and moves it to the target path.
+     * A download that does not match the File hash is deleted, so the next attempt starts over.
+     *
+     * @param partFile
+     *            the temporary file the File was downloaded to
+     * @param target
+     *            the download target
+     * @param file
+     *            the downloaded {@link File} info
+     * @param sha256
+     *            the SHA-256 hash of the downloaded contents
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return true if the download was verified and moved to the target
      */
-    private static StorageEndpoint getStorageEndpoint(String storageEndpointId) {
-        StorageEndpoint[] storageEndpoints = StorageEndpointService.getStorageEndpoints(true);
-        for (StorageEndpoint storageEndpoint : storageEndpoints) {
-            if (storageEndpoint.Active && storageEndpointId.equals(storageEndpoint.Id)) {
-                return storageEndpoint;
+    private static boolean completeDownload(Path partFile, Path target, File file, String sha256,
+                                            boolean suppressErrors) {
+        if (!verifyHash(file, sha256, suppressErrors)) {
+            deleteQuietly(partFile);
+            return false;
+        }
+        try {
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (!suppressErrors) {
+                System.err.println(String.format("Could not move the downloaded file to '%s'", target));
+                e.printStackTrace();
             }
+            return false;
         }
-        return null;
+        return true;
+    }
+
+    /**
+     * Checks the hash of downloaded contents against the File hash.
+     * Files without a SHA-256 hash cannot be verified and are accepted.
+     *
+     * @param file
+     *            the downloaded {@link File} info
+     * @param sha256
+     *            the SHA-256 hash of the downloaded contents
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return true if the hashes match or the File has no SHA-256 hash
+     */
+    private static boolean verifyHash(File file, String sha256, boolean suppressErrors) {
+        if (!isSha256(file.Hash) || file.Hash.equalsIgnoreCase(sha256)) {
+            return true;
+        }
+        if (!suppressErrors) {
+            System.err.println(String.format("The downloaded contents of %s do not match its hash: expected %s, got %s",
+                    file.Filename, file.Hash, sha256));
+        }
+        return false;
+    }
+
+    /**
+     * Indicates whether a File hash is a hex-encoded SHA-256 hash.
+     *
+     * @param hash
+     *            the File hash
+     * @return true for a SHA-256 hash
+     */
+    private static boolean isSha256(String hash) {
+        return hash != null && hash.length() == 64 && hash.matches("[0-9a-fA-F]+");
+    }
+
+    /**
+     * Feeds the first bytes of a partially downloaded file to a digest.
+     *
+     * @param digest
+     *            the digest to update
+     * @param channel
+     *            the partially downloaded file
+     * @param length
+     *            the number of bytes to read
+     */
+    private static void updateDigest(MessageDigest digest, FileChannel channel, long length) throws IOException {
+        ByteBuffer buffer = BufferPool.getDefault().acquire();
+        try {
+            long position = 0;
+            while (position < length) {
+                buffer.limit((int) Math.min(buffer.capacity(), length - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of the partially downloaded file.");
+                }
+                position += read;
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.getDefault().release(buffer);
+        }
+    }
+
+    /**
+     * Returns the temporary file a resumable download to the target is written to.
+     *
+     * @param target
+     *            the download target
+     * @return the temporary file path
+     */
+    private static Path getPartFile(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part");
+    }
+
+    /**
+     * Returns the file recording the version that the part file of a download to the target holds.
+     *
+     * @param target
+     *            the download target
+     * @return the version file path
+     */
+    private static Path getPartVersionFile(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part.version");
+    }
+
+    /**
+     * Returns the temporary file a download to the target is written to when it cannot be resumed,
+     * e.g. a segmented download or a copy from the download cache.
+     *
+     * @param target
+     *            the download target
+     * @return the temporary file path
+     */
+    private static Path getTempFile(Path target) {
+        return target.resolveSibling(target.getFileName() + ".tmp");
+    }
+
+    /**
+     * Keeps a partial download only if it holds the version that is downloaded now,
+     * and records that version next to the part file otherwise.
+     *
+     * @param partFile
+     *            the part file
+     * @param versionFile
+     *            the file recording the version of the part file
+     * @param versionId
+     *            the version to download, or null if it is not known and the download cannot be resumed
+     */
+    private static void preparePartFile(Path partFile, Path versionFile, String versionId) {
+        try {
+            if (versionId != null && Files.exists(versionFile)
+                    && versionId.equals(new String(Files.readAllBytes(versionFile), StandardCharsets.UTF_8))) {
+                return;
+            }
+            Files.deleteIfExists(partFile);
+            if (versionId == null) {
+                Files.deleteIfExists(versionFile);
+            } else {
+                Files.write(versionFile, versionId.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            // without a version file the part file is not resumed
+            deleteQuietly(partFile);
+            deleteQuietly(versionFile);
+        }
+    }
+
+    /**
+     * Deletes a file, ignoring errors.
+     *
+     * @param file
+     *            the file to delete
+     */
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Copies a stream to a channel through a single pooled buffer,
+     * so memory use does not depend on the content length.
+     *
+     * @param in
+     *            the stream to read from
+     * @param out
+     *            the channel to write to
+     * @param digest
+     *            the digest to update with the copied bytes
+     * @param url
+     *            the URL the stream is downloaded from, to throttle the copy for its storage endpoint
+     * @return the number of bytes copied
+     */
+    private static long transfer(InputStream in, WritableByteChannel out, MessageDigest digest, String url)
+            throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = BufferPool.getDefault().acquire();
+        try {
+            long total = 0;
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                BandwidthThrottle.consume(url, read);
+                buffer.flip();
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    total += out.write(buffer);
+                }
+                buffer.clear();
+            }
+            return total;
+        } finally {
+            BufferPool.getDefault().release(buffer);
+        }
+    }
+
+    /**
+     * Copies a local file to a stream through a single pooled buffer.
+     *
+     * @param source
+     *            the file to read from
+     * @param out
+     *            the stream to write to
+     */
+    private static void transfer(Path source, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        ByteBuffer buffer = BufferPool.getDefault().acquire();
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.getDefault().release(buffer);
+        }
+    }
+
+    /**
+     * Copies a File to a folder of another SyncPoint without staging it locally.
+     * The download stream of the source version is piped straight into the upload,
+     * and the contents are verified against the source File while they pass through.
+     *
+     * @param sourceSyncPointId
+     *            the SyncPoint ID of the source File
+     * @param file
+     *            the source {@link File} info with at least Filename, LatestVersionId, Length and Hash
+     * @param targetStorageEndpointUrl
+     *            the Storage Endpoint URL of the target SyncPoint
+     * @param targetFolderPath
+     *            the virtual path of the target folder
+     * @param targetSyncPointId
+     *            the target SyncPoint ID
+     * @param suppressErrors
+     *            indicates whether the errors should be suppressed
+     * @return true if the File was copied and verified
+     */
+    static boolean copyFile(long sourceSyncPointId,
+                            File file,
+                            String targetStorageEndpointUrl,
+                            String targetFolderPath,
+                            long targetSyncPointId,
+                            boolean suppressErrors) {
+        String sourceUrl = getDownloadUrl(sourceSyncPointId, file, suppressErrors);
+        if (sourceUrl == null) {
+            return false;
+        }
+        CopiedContent content = new CopiedContent(sourceUrl, file, suppressErrors);
+        String result = uploadFile(targetStorageEndpointUrl, targetFolderPath, file.Filename, targetSyncPointId,
+                content, content::getSha256);
+        return result != null && content.getSha256() != null;
     }
 
     /**
@@ -145,7 +934,132 @@ public class FileService extends APIGateway {
                                     String filename,
                                     long syncPointId,
                                     byte[] data) {
+        RequestBodyWriter content = new RequestBodyWriter() {
+            @Override
+            public long getContentLength() {
+                return data.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(data);
+            }
+        };
+        return uploadFile(storageEndpointUrl, filePath, filename, syncPointId, content, getSha256(data));
+    }
+
+    /**
+     * Uploads a local file.
+     * The file is read once: its contents are streamed to the storage endpoint and hashed
+     * on the way, and the hash is sent after them. If the file changes while it is uploaded,
+     * the upload is aborted before the hash is sent and fails. The hash of an uploaded file
+     * is recorded in the configured hash cache, if any.
+     *
+     * @param storageEndpointUrl
+     *            the Storage Endpoint URL
+     * @param filePath
+     *            the remote folder path
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param source
+     *            the local file to upload
+     * @return the upload result as a string
+     */
+    public static String uploadFile(String storageEndpointUrl,
+                                    String filePath,
+                                    long syncPointId,
+                                    Path source) throws IOException {
+        String filename = source.getFileName().toString();
+        LocalFileContent content = new LocalFileContent(source);
+        String result = uploadFile(storageEndpointUrl, filePath, filename, syncPointId, content, content::getSha256);
+        FileHashCache hashCache = FileHashCache.getDefault();
+        if (result != null && content.getSha256() != null && hashCache != null) {
+            try {
+                hashCache.put(source, content.getAttributes(), content.getSha256());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Uploads the contents of a stream of unknown length, e.g. data piped through {@link System#in}.
+     * The stream is read to its end and spooled in memory, or in a temporary file once it exceeds
+     * the uploadMemoryBufferMegabytes setting; its SHA-256 hash is computed while it is spooled.
+     * The stream is not closed.
+     *
+     * @param storageEndpointUrl
+     *            the Storage Endpoint URL
+     * @param filePath
+     *            the remote folder path
+     * @param filename
+     *            the filename
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param data
+     *            the stream to upload
+     * @return the upload result as a string
+     */
+    public static String uploadFile(String storageEndpointUrl,
+                                    String filePath,
+                                    String filename,
+                                    long syncPointId,
+                                    InputStream data) throws IOException {
+        long memoryBufferBytes = Math.max(0, ConfigurationHelper.getUploadMemoryBufferMegabytes()) * 1024L * 1024;
+        int memoryThreshold = (int) Math.min(memoryBufferBytes, MAX_MEMORY_BUFFER);
+        try (SpoolBuffer spoolBuffer = SpoolBuffer.spool(data, memoryThreshold)) {
+            RequestBodyWriter content = new RequestBodyWriter() {
+                @Override
+                public long getContentLength() {
+                    return spoolBuffer.size();
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    spoolBuffer.writeTo(out);
+                }
+            };
+            return uploadFile(storageEndpointUrl, filePath, filename, syncPointId, content,
+                    spoolBuffer.getSha256());
+        }
+    }
+
+    private static String uploadFile(String storageEndpointUrl,
+                                     String filePath,
+                                     String filename,
+                                     long syncPointId,
+                                     RequestBodyWriter content,
+                                     String sha256) {
+        return uploadFile(storageEndpointUrl, filePath, filename, syncPointId, content, () -> sha256);
+    }
+
+    /**
+     * Uploads a file whose SHA-256 hash is only known once its contents have been written.
+     * The hash is sent after the file data, so it is taken from the supplier only then.
+     *
+     * @param storageEndpointUrl
+     *            the Storage Endpoint URL
+     * @param filePath
+     *            the remote folder path
+     * @param filename
+     *            the filename
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param content
+     *            writes the file data
+     * @param sha256
+     *            supplies the hex-encoded SHA-256 hash of the data after it has been written
+     * @return the upload result as a string
+     */
+    private static String uploadFile(String storageEndpointUrl,
+                                     String filePath,
+                                     String filename,
+                                     long syncPointId,
+                                     RequestBodyWriter content,
+                                     Supplier<String> sha256) {
         filePath += filename;
+        String remotePath = filePath;
         try {
             filePath = URLEncoder.encode(filePath, StandardCharsets.UTF_8.toString());
         } catch (UnsupportedEncodingException e) {
@@ -153,38 +1067,59 @@ public class FileService extends APIGateway {
         }
         String contentType = "multipart/form-data; boundary=" + BOUNDARY;
 
-        String sha256 = getSha256(data);
         String url = String.format(uploadFileUrl, storageEndpointUrl, filePath);
         String sessionKey = "Bearer " + APIContext.getAccessToken();
         String creationTimeUtc = getDateTimeUtc();
 
-        byte[] multipartBody = createMultipartBody(filename, data, sha256, sessionKey, syncPointId, creationTimeUtc);
+        RequestBodyWriter multipartBody = new MultipartBody(
+                createMultipartHead(filename),
+                content,
+                createMultipartTail(SHA256_PLACEHOLDER, sessionKey, syncPointId, creationTimeUtc).length,
+                () -> createMultipartTail(sha256.get(), sessionKey, syncPointId, creationTimeUtc),
+                url);
 
-        Map<String, String> additionalHeaders = new HashMap<>();
-        boolean useMachineAccessTokenInsteadOfUserAccessToken = false;
-        if(ConfigurationHelper.isMachineTokenAuthenticationEnabledForStorageVaults()) {
-            additionalHeaders.put("Syncplicity-Storage-Authorization", ConfigurationHelper.getStorageToken());
-            useMachineAccessTokenInsteadOfUserAccessToken = true;
-        }
-
-        return httpPost(
-                false,
-                false,
-                useMachineAccessTokenInsteadOfUserAccessToken,
+        String result = httpPost(
+                useMachineAccessToken(),
                 url,
                 contentType,
                 multipartBody,
-                additionalHeaders,
+                createStorageHeaders(),
                 String.class);
+        PathIndex pathIndex = PathIndex.getDefault();
+        if (result != null && pathIndex != null) {
+            pathIndex.invalidate(syncPointId, remotePath);
+        }
+        return result;
     }
 
     /**
-     * Creates a multipart body.
+     * Creates the part of a multipart body that precedes the file data.
      * 
      * @param filename
      *            the filename
-     * @param data
-     *            the file data
+     * @return the multipart body head
+     */
+    private static byte[] createMultipartHead(String filename) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeBytes(TWO_HYPHENS + BOUNDARY + CRLF);
+            String fileParamName = "fileData";
+            out.writeBytes("Content-Disposition: form-data; name=\"" + fileParamName + "\"; filename=\"" + filename
+                    + "\"" + CRLF);
+            out.writeBytes("Content-Transfer-Encoding: binary" + CRLF);
+            out.writeBytes("Content-Type: " + URLConnection.guessContentTypeFromName(filename) + CRLF);
+            out.writeBytes(CRLF);
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Creates the part of a multipart body that follows the file data.
+     * 
      * @param sha256
      *            the SHA256 hash of tile content
      * @param sessionKey
@@ -193,21 +1128,13 @@ public class FileService extends APIGateway {
      *            the SyncPoint ID
      * @param creationTimeUtc
      *            the file creation date time in ISO 8601 format
-     * @return the multipart request body as a string
+     * @return the multipart body tail
      */
-    private static byte[] createMultipartBody(String filename, byte[] data, String sha256, String sessionKey,
-    		long syncPointId, String creationTimeUtc) {
+    private static byte[] createMultipartTail(String sha256, String sessionKey, long syncPointId,
+                                              String creationTimeUtc) {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream out = new DataOutputStream(baos);
         try {
-            out.writeBytes(TWO_HYPHENS + BOUNDARY + CRLF);
-            String fileParamName = "fileData";
-            out.writeBytes("Content-Disposition: form-data; name=\"" + fileParamName + "\"; filename=\"" + filename
-                    + "\"" + CRLF);
-            out.writeBytes("Content-Transfer-Encoding: binary" + CRLF);
-            out.writeBytes("Content-Type: " + URLConnection.guessContentTypeFromName(filename) + CRLF);
-            out.writeBytes(CRLF);
-            out.write(data);
             out.writeBytes(CRLF);
             addFormField(out, "sha256", sha256);
             addFormField(out, "sessionKey", sessionKey);
@@ -217,17 +1144,10 @@ public class FileService extends APIGateway {
             addFormField(out, "fileDone", null);
             out.writeBytes(TWO_HYPHENS + BOUNDARY + TWO_HYPHENS + CRLF + CRLF);
             out.flush();
-            out.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        byte[] multipartBody = baos.toByteArray();
-        try {
-            baos.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return multipartBody;
+        return baos.toByteArray();
     }
 
     /**
@@ -238,27 +1158,22 @@ public class FileService extends APIGateway {
      * @return the SHA256 hash
      */
     private static String getSha256(byte[] data) {
-        MessageDigest digest = null;
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        
-        final byte[] sha256 = digest.digest(data);
-		return convertToHexString(sha256);
+        return HashHelper.toHexString(HashHelper.newSha256().digest(data));
     }
 
-    private static String convertToHexString(byte[] sha256) {
-    	StringBuilder hexBuilder = new StringBuilder();
-    	for(byte b: sha256) {
-    		hexBuilder.append(String.format("%02x", b));
-    	}
-    	
-    	return hexBuilder.toString();
-	}
+    /**
+     * Generates SHA256 hash for a local file, using the configured hash cache if any.
+     *
+     * @param file
+     *            the file to generate SHA256 hash for
+     * @return the SHA256 hash
+     */
+    public static String getSha256(Path file) throws IOException {
+        FileHashCache hashCache = FileHashCache.getDefault();
+        return hashCache != null ? hashCache.getSha256(file) : HashHelper.sha256(file);
+    }
 
-	/**
+    /**
      * Generates a current date time string in ISO 8601 format.
      * 
      * @return the current date time string
@@ -291,4 +1206,153 @@ public class FileService extends APIGateway {
         out.writeBytes(CRLF);
         out.flush();
     }
-}
\ No newline at end of file
+
+    /**
+     * A multipart upload body streamed as its head, the file data and its tail.
+     * The tail is created after the file data has been written, as it carries the hash of the data.
+     * The file data is throttled for the storage endpoint it is uploaded to.
+     */
+    private static class MultipartBody implements RequestBodyWriter {
+        private final byte[] head;
+        private final RequestBodyWriter content;
+        private final int tailLength;
+        private final Supplier<byte[]> tail;
+        private final String url;
+
+        MultipartBody(byte[] head, RequestBodyWriter content, int tailLength, Supplier<byte[]> tail, String url) {
+            this.head = head;
+            this.content = content;
+            this.tailLength = tailLength;
+            this.tail = tail;
+            this.url = url;
+        }
+
+        @Override
+        public long getContentLength() {
+            return head.length + content.getContentLength() + tailLength;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(head);
+            content.writeTo(BandwidthThrottle.throttle(out, url));
+            out.write(tail.get());
+        }
+    }
+
+    /**
+     * Upload data read straight from the download stream of another File.
+     * The data is hashed while it passes through and checked against the length and hash
+     * of the source File; a mismatch aborts the upload before its tail is sent.
+     */
+    private static class CopiedContent implements RequestBodyWriter {
+        private final String sourceUrl;
+        private final File file;
+        private final boolean suppressErrors;
+        private String sha256;
+
+        CopiedContent(String sourceUrl, File file, boolean suppressErrors) {
+            this.sourceUrl = sourceUrl;
+            this.file = file;
+            this.suppressErrors = suppressErrors;
+        }
+
+        @Override
+        public long getContentLength() {
+            return file.Length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            ExecutionLane.TRANSFER.enter();
+            try {
+                HttpURLConnection request = openDownload(sourceUrl, suppressErrors);
+                if (request == null) {
+                    throw new IOException(String.format("Could not download %s", file.Filename));
+                }
+                MessageDigest digest = HashHelper.newSha256();
+                long length;
+                try (InputStream in = request.getInputStream()) {
+                    length = transfer(in, Channels.newChannel(out), digest, sourceUrl);
+                }
+                String downloadedSha256 = HashHelper.toHexString(digest.digest());
+                if (length != file.Length || !verifyHash(file, downloadedSha256, suppressErrors)) {
+                    throw new IOException(String.format("The contents of %s do not match the source file", file.Filename));
+                }
+                sha256 = downloadedSha256;
+            } finally {
+                ExecutionLane.TRANSFER.exit();
+            }
+        }
+
+        String getSha256() {
+            return sha256;
+        }
+    }
+
+    /**
+     * Upload data read from a local file in one pass. Exactly the length the file had when the upload
+     * started is sent, hashed while it passes through; if the file was changed in the meantime,
+     * the upload is aborted before its tail is sent.
+     */
+    private static class LocalFileContent implements RequestBodyWriter {
+        private final Path source;
+        private final BasicFileAttributes attributes;
+        private final long length;
+        private final FileTime lastModifiedTime;
+        private String sha256;
+
+        LocalFileContent(Path source) throws IOException {
+            this.source = source;
+            this.attributes = Files.readAttributes(source, BasicFileAttributes.class);
+            this.length = attributes.size();
+            this.lastModifiedTime = attributes.lastModifiedTime();
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            MessageDigest digest = HashHelper.newSha256();
+            WritableByteChannel target = Channels.newChannel(out);
+            ByteBuffer buffer = BufferPool.getDefault().acquire();
+            long remaining = length;
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+                while (remaining > 0) {
+                    buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                    int read = in.read(buffer);
+                    if (read == -1) {
+                        break;
+                    }
+                    remaining -= read;
+                    buffer.flip();
+                    digest.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                BufferPool.getDefault().release(buffer);
+            }
+
+            BasicFileAttributes after = Files.readAttributes(source, BasicFileAttributes.class);
+            if (remaining != 0 || after.size() != length
+                    || !after.lastModifiedTime().equals(lastModifiedTime)) {
+                throw new IOException(String.format("'%s' was changed while it was uploaded", source));
+            }
+            sha256 = HashHelper.toHexString(digest.digest());
+        }
+
+        String getSha256() {
+            return sha256;
+        }
+
+        BasicFileAttributes getAttributes() {
+            return attributes;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package services;
+
+import entities.File;
+import entities.Folder;
+import entities.SyncPoint;
+import util.ConfigurationHelper;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lists every Folder and File of a Folder tree in parallel.
+ * <p>
+ * Each Folder is listed by a task of a work-stealing pool that forks a task per subfolder,
+ * so the listing fans out across the tree as fast as the metadata lane allows. The Folders and
+ * Files found are handed to the caller as a stream through a bounded queue; when the caller
+ * falls behind, the listing pauses, so memory use does not grow with the size of the tree.
+ * Progress can be followed with {@link #getStatistics()} while the crawl runs.
+ * <p>
+ * The parallelism is bounded by the metadataConcurrency setting as well, since every listing
+ * is a metadata call; raise both to crawl very large SyncPoints.
+ */
+public class FolderCrawler {
+
+    private static final int QUEUED_ITEMS = 4096;
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final long syncPointId;
+    private final int parallelism;
+    private final boolean suppressErrors;
+    private final BlockingQueue<Item> queue = new ArrayBlockingQueue<>(QUEUED_ITEMS);
+    private final Statistics statistics = new Statistics();
+    private volatile boolean closed;
+
+    /**
+     * Creates a crawler with the parallelism set by the metadataConcurrency setting.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     */
+    public FolderCrawler(long syncPointId, boolean suppressErrors) {
+        this(syncPointId, ConfigurationHelper.getMetadataConcurrency(), suppressErrors);
+    }
+
+    /**
+     * Creates a crawler.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param parallelism
+     *            the number of Folders listed at the same time
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     */
+    public FolderCrawler(long syncPointId, int parallelism, boolean suppressErrors) {
+        this.syncPointId = syncPointId;
+        this.parallelism = Math.max(1, parallelism);
+        this.suppressErrors = suppressErrors;
+    }
+
+    /**
+     * Lists a whole SyncPoint.
+     *
+     * @param syncPoint
+     *            the {@link SyncPoint} with at least Id and RootFolderId
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return the stream of the Folders and Files of the SyncPoint
+     * @see #crawl(long)
+     */
+    public static Stream<Item> crawl(SyncPoint syncPoint, boolean suppressErrors) {
+        return new FolderCrawler(syncPoint.Id, suppressErrors).crawl(syncPoint.RootFolderId);
+    }
+
+    /**
+     * Starts listing a Folder and all its subfolders. A crawler can only be started once.
+     * The stream yields the root Folder, every subfolder and every File in no particular order,
+     * each Folder before its contents. Closing the stream stops the crawl.
+     *
+     * @param rootFolderId
+     *            the Folder ID to start at
+     * @return the stream of Folders and Files
+     */
+    public synchronized Stream<Item> crawl(long rootFolderId) {
+        if (statistics.startNanos != 0) {
+            throw new IllegalStateException("The crawler has already been started.");
+        }
+        statistics.startNanos = System.nanoTime();
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        Thread crawl = new Thread(() -> {
+            try {
+                pool.invoke(new FolderTask(rootFolderId, 0));
+            } catch (RuntimeException e) {
+                statistics.errors.incrementAndGet();
+                if (!suppressErrors) {
+                    e.printStackTrace();
+                }
+            } finally {
+                pool.shutdown();
+                statistics.endNanos = System.nanoTime();
+                offer(Item.END);
+            }
+        }, "folder-crawler");
+        crawl.setDaemon(true);
+        crawl.start();
+
+        Iterator<Item> items = new Iterator<Item>() {
+            private Item next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = queue.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        next = Item.END;
+                    }
+                }
+                return next != Item.END;
+            }
+
+            @Override
+            public Item next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Item item = next;
+                next = null;
+                return item;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(items, Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    closed = true;
+                    pool.shutdownNow();
+                    queue.clear();
+                });
+    }
+
+    /**
+     * @return the progress of the crawl
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Hands an item to the consumer, waiting while the queue is full.
+     *
+     * @return false if the crawl was stopped
+     */
+    private boolean offer(Item item) {
+        try {
+            while (!closed) {
+                if (queue.offer(item, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Lists a Folder, emits it and its Files and forks a task per subfolder.
+     */
+    private class FolderTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final long folderId;
+        private final int depth;
+
+        FolderTask(long folderId, int depth) {
+            this.folderId = folderId;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (closed) {
+                return;
+            }
+            Folder folder = FolderService.listFolder(syncPointId, folderId, suppressErrors);
+            if (folder == null) {
+                statistics.errors.incrementAndGet();
+                return;
+            }
+            statistics.folders.incrementAndGet();
+            statistics.maxDepth.accumulateAndGet(depth, Math::max);
+
+            // emit the Folder before its subfolders can be listed and emitted
+            if (!offer(new Item(folder, null, depth))) {
+                return;
+            }
+
+            List<FolderTask> subfolders = new ArrayList<>();
+            if (folder.Folders != null) {
+                for (Folder subfolder : folder.Folders) {
+                    subfolders.add(new FolderTask(subfolder.FolderId, depth + 1));
+                }
+            }
+            // let idle workers steal the subfolders while this one emits the Files
+            for (FolderTask subfolder : subfolders) {
+                subfolder.fork();
+            }
+
+            if (folder.Files != null) {
+                for (File file : folder.Files) {
+                    statistics.files.incrementAndGet();
+                    if (!offer(new Item(folder, file, depth))) {
+                        break;
+                    }
+                }
+            }
+
+            for (FolderTask subfolder : subfolders) {
+                subfolder.join();
+            }
+        }
+    }
+
+    /**
+     * A Folder or a File found by the crawler.
+     */
+    public static class Item {
+        static final Item END = new Item(null, null, -1);
+
+        private final Folder folder;
+        private final File file;
+        private final int depth;
+
+        Item(Folder folder, File file, int depth) {
+            this.folder = folder;
+            this.file = file;
+            this.depth = depth;
+        }
+
+        /**
+         * @return true for a File, false for a Folder
+         */
+        public boolean isFile() {
+            return file != null;
+        }
+
+        /**
+         * @return the Folder, or the Folder containing the File
+         */
+        public Folder getFolder() {
+            return folder;
+        }
+
+        /**
+         * @return the File, or null for a Folder
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the depth of the Folder below the root Folder, 0 for the root Folder
+         */
+        public int getDepth() {
+            return depth;
+        }
+    }
+
+    /**
+     * Progress of a crawl.
+     */
+    public static class Statistics {
+        private final AtomicLong folders = new AtomicLong();
+        private final AtomicLong files = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private volatile long startNanos;
+        private volatile long endNanos;
+
+        /**
+         * @return the number of Folders listed so far
+         */
+        public long getFolders() {
+            return folders.get();
+        }
+
+        /**
+         * @return the number of Files found so far
+         */
+        public long getFiles() {
+            return files.get();
+        }
+
+        /**
+         * @return the number of Folders that could not be listed
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return the deepest level reached so far, 0 for the root Folder
+         */
+        public int getMaxDepth() {
+            return maxDepth.get();
+        }
+
+        /**
+         * @return true once every Folder has been listed or the crawl was stopped
+         */
+        public boolean isFinished() {
+            return endNanos != 0;
+        }
+
+        /**
+         * @return the average number of Folders listed per second
+         */
+        public double getFoldersPerSecond() {
+            long end = endNanos != 0 ? endNanos : System.nanoTime();
+            long elapsed = end - startNanos;
+            return startNanos == 0 || elapsed <= 0 ? 0 : folders.get() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d folders, %d files, %d errors, depth %d, %.1f folders/s",
+                    getFolders(), getFiles(), getErrors(), getMaxDepth(), getFoldersPerSecond());
+        }
+    }
+}
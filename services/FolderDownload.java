@@ -0,0 +1,178 @@
+package services;
+
+import entities.File;
+import entities.Folder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a Folder tree to a local directory.
+ * <p>
+ * Folders are listed by a work-stealing pool of walkers, which create the local directories
+ * and submit the files they find to a {@link TransferScheduler}. The scheduler downloads them
+ * in the order of their SyncPriority, so listing and downloading overlap, and the walkers
+ * pause when the downloads fall behind instead of accumulating the whole tree in memory.
+ */
+class FolderDownload {
+
+    private static final int MAX_WALKERS = 4;
+    private static final int QUEUED_FILES_PER_WORKER = 64;
+
+    private final long syncPointId;
+    private final int concurrency;
+    private final boolean suppressErrors;
+    private final TransferScheduler scheduler;
+    private final AtomicInteger downloadedFiles = new AtomicInteger();
+    private final AtomicInteger skippedFiles = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    FolderDownload(long syncPointId, int concurrency, boolean suppressErrors) {
+        this.syncPointId = syncPointId;
+        this.concurrency = Math.max(1, concurrency);
+        this.suppressErrors = suppressErrors;
+        this.scheduler = new TransferScheduler(this.concurrency, this.concurrency * QUEUED_FILES_PER_WORKER);
+    }
+
+    /**
+     * Downloads a Folder and all its subfolders.
+     *
+     * @param folderId
+     *            the Folder ID
+     * @param localRoot
+     *            the local directory to download the Folder contents into
+     * @return true if every Folder was listed and every File was downloaded
+     */
+    boolean execute(long folderId, Path localRoot) throws InterruptedException {
+        // the names of the Folder contents are checked against the normalized directories they resolve in
+        localRoot = localRoot.toAbsolutePath().normalize();
+        ForkJoinPool walkers = new ForkJoinPool(Math.min(MAX_WALKERS, concurrency));
+        try {
+            walkers.invoke(new FolderTask(folderId, localRoot));
+            scheduler.shutdown(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            walkers.shutdown();
+            scheduler.shutdownNow();
+        }
+
+        System.out.println(String.format("Downloaded %d files to %s, %d were up to date, %d failures.",
+                downloadedFiles.get(), localRoot, skippedFiles.get(), failures.get()));
+        scheduler.printStatistics();
+        return failures.get() == 0;
+    }
+
+    private boolean downloadFile(File file, Path target) {
+        if (isUpToDate(file, target)) {
+            skippedFiles.incrementAndGet();
+            return true;
+        }
+        if (FileService.downloadFile(syncPointId, file, target, suppressErrors)) {
+            downloadedFiles.incrementAndGet();
+            return true;
+        }
+        failures.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Checks whether a previous run already downloaded the same File contents to the target.
+     */
+    private boolean isUpToDate(File file, Path target) {
+        try {
+            return file.Hash != null
+                    && Files.isRegularFile(target)
+                    && Files.size(target) == file.Length
+                    && file.Hash.equalsIgnoreCase(FileService.getSha256(target));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Resolves a remote name inside a local directory, refusing names that would escape it.
+     */
+    private Path resolve(Path directory, String name) {
+        Path path = directory.resolve(name).normalize();
+        if (name.isEmpty() || !directory.equals(path.getParent())) {
+            if (!suppressErrors) {
+                System.err.println(String.format("Skipping '%s' in %s: not a valid local name.", name, directory));
+            }
+            failures.incrementAndGet();
+            return null;
+        }
+        return path;
+    }
+
+    /**
+     * Lists a Folder, queues its files and forks a task per subfolder.
+     */
+    private class FolderTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final long folderId;
+        private final Path localDirectory;
+
+        FolderTask(long folderId, Path localDirectory) {
+            this.folderId = folderId;
+            this.localDirectory = localDirectory;
+        }
+
+        @Override
+        protected void compute() {
+            Folder folder = FolderService.listFolder(syncPointId, folderId, suppressErrors);
+            if (folder == null) {
+                failures.incrementAndGet();
+                return;
+            }
+            try {
+                Files.createDirectories(localDirectory);
+            } catch (IOException e) {
+                if (!suppressErrors) {
+                    System.err.println(String.format("Could not create directory '%s'", localDirectory));
+                    e.printStackTrace();
+                }
+                failures.incrementAndGet();
+                return;
+            }
+
+            List<FolderTask> subfolders = new ArrayList<>();
+            if (folder.Folders != null) {
+                for (Folder subfolder : folder.Folders) {
+                    Path subdirectory = resolve(localDirectory, subfolder.Name);
+                    if (subdirectory != null) {
+                        subfolders.add(new FolderTask(subfolder.FolderId, subdirectory));
+                    }
+                }
+            }
+            // let idle walkers steal the subfolders while this one queues the files
+            for (FolderTask subfolder : subfolders) {
+                subfolder.fork();
+            }
+
+            if (folder.Files != null) {
+                try {
+                    for (File file : folder.Files) {
+                        Path target = resolve(localDirectory, file.Filename);
+                        if (target != null) {
+                            scheduler.submit(file, () -> downloadFile(file, target));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failures.incrementAndGet();
+                }
+            }
+
+            for (FolderTask subfolder : subfolders) {
+                subfolder.join();
+            }
+        }
+    }
+}
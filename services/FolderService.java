@@ -1,8 +1,27 @@
 package services;
 
+import entities.File;
 import entities.Folder;
+import entities.SyncPoint;
 import util.APIGateway;
 import util.ConfigurationHelper;
+import util.ExecutionLane;
+import util.JSONArrayReader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A service for retrieving Folder data.
@@ -19,6 +38,11 @@ public class FolderService extends APIGateway {
      */
     protected static String folderUrl;
 
+    /**
+     * Returned by {@link #getFolderIfModified(long, long, String[], boolean)} for an unchanged Folder.
+     */
+    static final Folder NOT_MODIFIED = new Folder();
+
     static {
         foldersUrl = ConfigurationHelper.getBaseApiEndpointUrl() + "sync/folder_folders.svc/%s/folder/%s/folders";
         folderUrl = ConfigurationHelper.getBaseApiEndpointUrl() + "sync/folder.svc/%s/folder/%s?include=active";
@@ -36,7 +60,12 @@ public class FolderService extends APIGateway {
      * @return
      */
     public static Folder[] createFolders(long syncPointId, long folderId, Folder[] folders) {
-        return httpPost(String.format(foldersUrl, syncPointId, folderId), "application/json", folders);
+        Folder[] created = httpPost(String.format(foldersUrl, syncPointId, folderId), "application/json", folders);
+        PathIndex pathIndex = PathIndex.getDefault();
+        if (created != null && pathIndex != null) {
+            pathIndex.addSubfolders(syncPointId, folderId, created);
+        }
+        return created;
     }
 
     /**
@@ -51,9 +80,304 @@ public class FolderService extends APIGateway {
      * @return the matching {@link Folder} object
      */
     public static Folder getFolder(long syncPointId, long folderId, boolean suppressErrors) {
+        Folder folder = httpGet(String.format(folderUrl, syncPointId, folderId), Folder.class, suppressErrors);
+        addToPathIndex(syncPointId, folder);
+        return folder;
+    }
+
+    /**
+     * Retrieves a Folder without adding it to the {@link PathIndex}, for walks over many Folders
+     * that would otherwise fill the index with paths nobody looks up.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param folderId
+     *            the Folder ID
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return the matching {@link Folder} object
+     */
+    static Folder listFolder(long syncPointId, long folderId, boolean suppressErrors) {
         return httpGet(String.format(folderUrl, syncPointId, folderId), Folder.class, suppressErrors);
     }
 
+    /**
+     * Retrieves a Folder with a conditional request, so that an unchanged Folder is not listed again.
+     * Only works if the server sends an entity tag with the listing; otherwise the Folder is always listed.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param folderId
+     *            the Folder ID
+     * @param entityTag
+     *            holds the entity tag of the previous listing or null, and receives the entity tag
+     *            of the new listing
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return the {@link Folder}, {@link #NOT_MODIFIED} if it did not change, or null if it could not be listed
+     */
+    static Folder getFolderIfModified(long syncPointId, long folderId, String[] entityTag, boolean suppressErrors) {
+        Map<String, String> headers = new HashMap<>();
+        if (entityTag[0] != null) {
+            headers.put("If-None-Match", entityTag[0]);
+        }
+        ExecutionLane.METADATA.enter();
+        try {
+            HttpURLConnection request = httpGetStream(String.format(folderUrl, syncPointId, folderId), headers,
+                    suppressErrors, false);
+            if (request == null) {
+                return null;
+            }
+            if (request.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // close the empty body so that the connection can be reused
+                request.getInputStream().close();
+                return NOT_MODIFIED;
+            }
+            String newEntityTag = request.getHeaderField("ETag");
+            Folder folder = readJson(request.getInputStream(), Folder.class);
+            // keep the previous tag until the listing is read, so that a failed read is listed again
+            if (folder != null) {
+                entityTag[0] = newEntityTag;
+            }
+            return folder;
+        } catch (IOException e) {
+            if (!suppressErrors) {
+                e.printStackTrace();
+            }
+            return null;
+        } finally {
+            ExecutionLane.METADATA.exit();
+        }
+    }
+
+    private static void addToPathIndex(long syncPointId, Folder folder) {
+        PathIndex pathIndex = PathIndex.getDefault();
+        if (folder != null && pathIndex != null) {
+            pathIndex.addFolder(syncPointId, folder);
+        }
+    }
+
+    /**
+     * Lists the Files of a Folder as they arrive, without decoding the whole listing into an array,
+     * e.g. to filter a Folder with hundreds of thousands of Files. The stream holds a slot of the
+     * metadata lane and the connection until it has been read to the end or closed, and must be closed
+     * on the thread that opened it, e.g. with try-with-resources. A read error in the middle of
+     * the listing is thrown as an {@link java.io.UncheckedIOException}.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param folderId
+     *            the Folder ID
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return the stream of {@link File}s or null if the Folder could not be listed
+     */
+    public static Stream<File> streamFiles(long syncPointId, long folderId, boolean suppressErrors) {
+        ExecutionLane.METADATA.enter();
+        JSONArrayReader<File> files = null;
+        try {
+            HttpURLConnection request = httpGetStream(String.format(folderUrl, syncPointId, folderId), null,
+                    suppressErrors, false);
+            if (request != null) {
+                files = new JSONArrayReader<>(request.getInputStream(), "Files", File.class);
+            }
+        } catch (IOException e) {
+            if (!suppressErrors) {
+                e.printStackTrace();
+            }
+        }
+        if (files == null) {
+            ExecutionLane.METADATA.exit();
+            return null;
+        }
+
+        JSONArrayReader<File> reader = files;
+        AtomicBoolean closed = new AtomicBoolean();
+        Runnable close = () -> {
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                } finally {
+                    ExecutionLane.METADATA.exit();
+                }
+            }
+        };
+        Iterator<File> iterator = new Iterator<File>() {
+            @Override
+            public boolean hasNext() {
+                boolean hasNext;
+                try {
+                    hasNext = !closed.get() && reader.hasNext();
+                } catch (RuntimeException e) {
+                    close.run();
+                    throw e;
+                }
+                if (!hasNext) {
+                    // give the slot back as soon as the listing has been read
+                    close.run();
+                }
+                return hasNext;
+            }
+
+            @Override
+            public File next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return reader.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(close);
+    }
+
+    /**
+     * Creates a view of a Folder whose contents are only listed when they are first accessed,
+     * e.g. to browse a large tree one Folder at a time.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param folderId
+     *            the Folder ID
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return the {@link LazyFolder} view
+     */
+    public static LazyFolder openFolder(long syncPointId, long folderId, boolean suppressErrors) {
+        return new LazyFolder(syncPointId, folderId, suppressErrors);
+    }
+
+    /**
+     * Resolves the virtual path of a Folder with the path index, listing only the Folders along the path
+     * that are not indexed yet.
+     *
+     * @param syncPoint
+     *            the {@link SyncPoint} with at least Id and RootFolderId
+     * @param path
+     *            the virtual path of the Folder, relative to the SyncPoint root
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return the matching {@link Folder} object or null if there is no Folder at the path
+     */
+    public static Folder getFolder(SyncPoint syncPoint, String path, boolean suppressErrors) {
+        PathIndex pathIndex = PathIndex.getDefault();
+        if (pathIndex == null) {
+            pathIndex = new PathIndex(Integer.MAX_VALUE, 0);
+        }
+        Long folderId = pathIndex.getFolderId(syncPoint, path, suppressErrors);
+        return folderId == null ? null : getFolder(syncPoint.Id, folderId, suppressErrors);
+    }
+
+    /**
+     * Downloads a Folder and all its subfolders to a local directory,
+     * using the number of concurrent downloads set by the downloadConcurrency setting.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param folderId
+     *            the Folder ID
+     * @param localRoot
+     *            the local directory to download the Folder contents into
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return true if all Folders and Files were downloaded
+     */
+    public static boolean downloadFolder(long syncPointId, long folderId, Path localRoot, boolean suppressErrors) {
+        return downloadFolder(syncPointId, folderId, localRoot, ConfigurationHelper.getDownloadConcurrency(),
+                suppressErrors);
+    }
+
+    /**
+     * Downloads a Folder and all its subfolders to a local directory.
+     * Files that are already present locally with the same hash are not downloaded again.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param folderId
+     *            the Folder ID
+     * @param localRoot
+     *            the local directory to download the Folder contents into
+     * @param concurrency
+     *            the number of Files downloaded at the same time
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return true if all Folders and Files were downloaded
+     */
+    public static boolean downloadFolder(long syncPointId, long folderId, Path localRoot, int concurrency,
+                                         boolean suppressErrors) {
+        try {
+            return new FolderDownload(syncPointId, concurrency, suppressErrors).execute(folderId, localRoot);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Copies the contents of a Folder and all its subfolders into a Folder of another SyncPoint,
+     * e.g. to migrate them to another storage endpoint. File contents are streamed from the source
+     * to the target storage endpoint without being stored locally, and verified on the way.
+     * Up to transferConcurrency Files are copied at the same time.
+     *
+     * @param sourceSyncPointId
+     *            the source SyncPoint ID
+     * @param sourceFolderId
+     *            the source Folder ID
+     * @param targetSyncPointId
+     *            the target SyncPoint ID
+     * @param targetFolderId
+     *            the target Folder ID
+     * @param checkpointFile
+     *            a local file recording the copied Files, so that an interrupted copy can be resumed
+     *            by running it again; null to copy without a checkpoint
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return true if all Folders and Files were copied
+     */
+    public static boolean copyFolder(long sourceSyncPointId, long sourceFolderId, long targetSyncPointId,
+                                     long targetFolderId, Path checkpointFile, boolean suppressErrors) {
+        try {
+            return new SyncPointCopy(sourceSyncPointId, targetSyncPointId,
+                    ConfigurationHelper.getTransferConcurrency(), suppressErrors)
+                    .execute(sourceFolderId, targetFolderId, checkpointFile);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Writes a Folder and all its subfolders to a stream as a zip archive,
+     * e.g. to pipe an export into backup tooling through {@link System#out}.
+     * Upcoming files are downloaded in parallel while earlier ones are written.
+     * The stream is not closed.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param folderId
+     *            the Folder ID
+     * @param out
+     *            the stream to write the archive to
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return true if all Folders and Files were exported
+     */
+    public static boolean exportFolderAsZip(long syncPointId, long folderId, OutputStream out,
+                                            boolean suppressErrors) throws IOException {
+        // when the archive goes to the console, keep the request logging out of it
+        boolean toConsole = out == System.out;
+        PrintStream previousLog = toConsole ? setLog(System.err) : null;
+        try {
+            return new ZipExport(syncPointId, ConfigurationHelper.getDownloadConcurrency(), suppressErrors)
+                    .execute(folderId, out);
+        } finally {
+            if (toConsole) {
+                setLog(previousLog);
+            }
+        }
+    }
+
     /**
      * Deletes a Folder.
      * 
@@ -64,5 +388,9 @@ public class FolderService extends APIGateway {
      */
     public static void deleteFolder(long syncPointId, long folderId) {
         httpDelete(String.format(folderUrl, syncPointId, folderId), Folder.class);
+        PathIndex pathIndex = PathIndex.getDefault();
+        if (pathIndex != null) {
+            pathIndex.invalidateFolder(syncPointId, folderId);
+        }
     }
 }
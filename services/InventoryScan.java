@@ -0,0 +1,434 @@
+package services;
+
+import entities.File;
+import entities.Folder;
+import entities.SyncPoint;
+import util.ConfigurationHelper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Lists every Folder and File of many SyncPoints into one inventory, e.g. for a storage audit.
+ * <p>
+ * All SyncPoints are crawled at the same time and share the workers fairly: the next Folder to list
+ * is taken from each SyncPoint in turn, so a SyncPoint with millions of Folders gets the same share
+ * of listings as a small one and does not hold it up; the small ones finish early and leave the
+ * workers to the large ones. A Folder is only taken when a worker is free, so the turns are not
+ * decided in advance. The listings of all SyncPoints together are kept below a rate limit.
+ * <p>
+ * The inventory is written while the scan runs, as newline-delimited JSON with one record per line:
+ * a {@code SyncPoint} record when a SyncPoint is started, a {@code Folder} record for every Folder
+ * followed by a {@code File} record for each of its Files, an {@code Error} record for every Folder
+ * that could not be listed, and a {@code Summary} record with the totals when a SyncPoint is done.
+ * Records of different SyncPoints are interleaved; every record carries its SyncPointId.
+ */
+public class InventoryScan {
+
+    private final long nanosPerRequest;
+    private final int concurrency;
+    private final boolean suppressErrors;
+    private final Statistics statistics = new Statistics();
+    // SyncPoints that have Folders waiting to be listed, in the order of their turns
+    private final ArrayDeque<SyncPointScan> turns = new ArrayDeque<>();
+    private int activeSyncPoints;
+    private Writer out;
+    private volatile IOException writeError;
+
+    /**
+     * Creates a scan with the rate limit set by the inventoryRequestsPerSecond setting,
+     * listing as many Folders at a time as the metadataConcurrency setting allows.
+     *
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     */
+    public InventoryScan(boolean suppressErrors) {
+        this(ConfigurationHelper.getInventoryRequestsPerSecond(), ConfigurationHelper.getMetadataConcurrency(),
+                suppressErrors);
+    }
+
+    /**
+     * Creates a scan.
+     *
+     * @param requestsPerSecond
+     *            the maximum number of Folder listings per second of all SyncPoints, 0 for no limit
+     * @param concurrency
+     *            the number of Folders listed at the same time
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     */
+    public InventoryScan(double requestsPerSecond, int concurrency, boolean suppressErrors) {
+        this.nanosPerRequest = requestsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond) : 0;
+        this.concurrency = Math.max(1, concurrency);
+        this.suppressErrors = suppressErrors;
+    }
+
+    /**
+     * Scans all SyncPoints the user has access to.
+     *
+     * @param out
+     *            receives the inventory; it is flushed but not closed
+     * @return false if a Folder could not be listed or the inventory could not be written
+     * @see #scan(SyncPoint[], OutputStream)
+     */
+    public boolean scan(OutputStream out) {
+        return scan(SyncPointService.getSyncPoints(suppressErrors), out);
+    }
+
+    /**
+     * Scans SyncPoints and returns when all of them have been listed. A scan can only be run once.
+     *
+     * @param syncPoints
+     *            the {@link SyncPoint}s with at least Id and RootFolderId
+     * @param out
+     *            receives the inventory; it is flushed but not closed
+     * @return false if a Folder could not be listed or the inventory could not be written
+     */
+    public boolean scan(SyncPoint[] syncPoints, OutputStream out) {
+        synchronized (this) {
+            if (this.out != null) {
+                throw new IllegalStateException("The scan has already been run.");
+            }
+            this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+        }
+        statistics.startNanos = System.nanoTime();
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "inventory-scan-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore idleWorkers = new Semaphore(concurrency);
+        try {
+            for (SyncPoint syncPoint : syncPoints) {
+                SyncPointScan scan = new SyncPointScan(syncPoint);
+                write(scan.createSyncPointRecord());
+                scan.folderIds.add(syncPoint.RootFolderId);
+                synchronized (this) {
+                    turns.add(scan);
+                    activeSyncPoints++;
+                }
+            }
+
+            long nextRequestNanos = System.nanoTime();
+            while (writeError == null) {
+                idleWorkers.acquire();
+                SyncPointScan scan;
+                long folderId;
+                synchronized (this) {
+                    while (turns.isEmpty() && activeSyncPoints > 0 && writeError == null) {
+                        wait();
+                    }
+                    if (turns.isEmpty() || writeError != null) {
+                        idleWorkers.release();
+                        break;
+                    }
+                    scan = turns.poll();
+                    folderId = scan.folderIds.poll();
+                    scan.listing++;
+                    // back of the line, so that every other SyncPoint gets a turn first
+                    if (!scan.folderIds.isEmpty()) {
+                        turns.add(scan);
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (nextRequestNanos > now) {
+                    TimeUnit.NANOSECONDS.sleep(nextRequestNanos - now);
+                }
+                nextRequestNanos = Math.max(now, nextRequestNanos) + nanosPerRequest;
+                workers.execute(() -> {
+                    try {
+                        list(scan, folderId);
+                    } finally {
+                        idleWorkers.release();
+                    }
+                });
+            }
+
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            synchronized (this) {
+                this.out.flush();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (IOException e) {
+            writeError = e;
+        } finally {
+            statistics.endNanos = System.nanoTime();
+        }
+
+        if (writeError != null) {
+            workers.shutdownNow();
+            if (!suppressErrors) {
+                System.err.println("Could not write the inventory");
+                writeError.printStackTrace();
+            }
+            return false;
+        }
+        return statistics.getErrors() == 0;
+    }
+
+    /**
+     * @return the progress of the scan
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    private void list(SyncPointScan scan, long folderId) {
+        statistics.requests.incrementAndGet();
+        Folder folder;
+        try {
+            folder = FolderService.listFolder(scan.syncPoint.Id, folderId, suppressErrors);
+        } catch (RuntimeException e) {
+            // the Folder must still be accounted for, or the scan would never end
+            if (!suppressErrors) {
+                e.printStackTrace();
+            }
+            folder = null;
+        }
+        StringWriter records = new StringWriter();
+        try {
+            if (folder == null) {
+                scan.errors++;
+                statistics.errors.incrementAndGet();
+                writeErrorRecord(records, scan, folderId);
+            } else {
+                writeFolderRecords(records, scan, folder);
+            }
+        } catch (IOException e) {
+            // not thrown by a StringWriter
+            throw new IllegalStateException(e);
+        }
+
+        synchronized (this) {
+            if (folder != null && folder.Folders != null) {
+                boolean waiting = !scan.folderIds.isEmpty();
+                for (Folder subfolder : folder.Folders) {
+                    scan.folderIds.add(subfolder.FolderId);
+                }
+                if (!waiting && !scan.folderIds.isEmpty()) {
+                    turns.add(scan);
+                }
+            }
+            scan.listing--;
+            write(records.toString());
+            if (scan.listing == 0 && scan.folderIds.isEmpty()) {
+                activeSyncPoints--;
+                statistics.syncPoints.incrementAndGet();
+                write(scan.createSummaryRecord());
+            }
+            notifyAll();
+        }
+    }
+
+    private void writeFolderRecords(Writer records, SyncPointScan scan, Folder folder) throws IOException {
+        scan.folders++;
+        statistics.folders.incrementAndGet();
+        JsonWriter json = createJsonWriter(records);
+        json.beginObject()
+                .name("Type").value("Folder")
+                .name("SyncPointId").value(scan.syncPoint.Id)
+                .name("FolderId").value(folder.FolderId)
+                .name("Name").value(folder.Name)
+                .name("VirtualPath").value(folder.VirtualPath)
+                .endObject();
+        records.write('\n');
+        if (folder.Files == null) {
+            return;
+        }
+
+        long bytes = 0;
+        for (File file : folder.Files) {
+            bytes += file.Length;
+            json.beginObject()
+                    .name("Type").value("File")
+                    .name("SyncPointId").value(scan.syncPoint.Id)
+                    .name("FolderId").value(folder.FolderId)
+                    .name("FileId").value(file.FileId)
+                    .name("Filename").value(file.Filename)
+                    .name("Length").value(file.Length)
+                    .name("Hash").value(file.Hash)
+                    .name("LastWriteTimeUtc").value(file.LastWriteTimeUtc)
+                    .endObject();
+            records.write('\n');
+        }
+        scan.files += folder.Files.length;
+        scan.bytes += bytes;
+        statistics.files.addAndGet(folder.Files.length);
+        statistics.bytes.addAndGet(bytes);
+    }
+
+    private void writeErrorRecord(Writer records, SyncPointScan scan, long folderId) throws IOException {
+        createJsonWriter(records).beginObject()
+                .name("Type").value("Error")
+                .name("SyncPointId").value(scan.syncPoint.Id)
+                .name("FolderId").value(folderId)
+                .name("Message").value("Could not list the Folder")
+                .endObject();
+        records.write('\n');
+    }
+
+    private static JsonWriter createJsonWriter(Writer records) {
+        JsonWriter json = new JsonWriter(records);
+        // one object per line
+        json.setLenient(true);
+        json.setSerializeNulls(false);
+        return json;
+    }
+
+    /**
+     * Appends records to the inventory. Records of one Folder are written together, so they are
+     * not interleaved with the records of other Folders.
+     */
+    private synchronized void write(String records) {
+        if (writeError != null) {
+            return;
+        }
+        try {
+            out.write(records);
+        } catch (IOException e) {
+            writeError = e;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The state of the scan of one SyncPoint. Guarded by the scan.
+     */
+    private static class SyncPointScan {
+        private final SyncPoint syncPoint;
+        // Folders found but not listed yet
+        private final ArrayDeque<Long> folderIds = new ArrayDeque<>();
+        private final long startNanos = System.nanoTime();
+        private int listing;
+        private long folders;
+        private long files;
+        private long bytes;
+        private long errors;
+
+        private SyncPointScan(SyncPoint syncPoint) {
+            this.syncPoint = syncPoint;
+        }
+
+        private String createSyncPointRecord() {
+            StringWriter record = new StringWriter();
+            try {
+                createJsonWriter(record).beginObject()
+                        .name("Type").value("SyncPoint")
+                        .name("SyncPointId").value(syncPoint.Id)
+                        .name("Name").value(syncPoint.Name)
+                        .name("RootFolderId").value(syncPoint.RootFolderId)
+                        .name("Owner").value(syncPoint.Owner == null ? null : syncPoint.Owner.EmailAddress)
+                        .endObject();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return record.append('\n').toString();
+        }
+
+        private String createSummaryRecord() {
+            StringWriter record = new StringWriter();
+            try {
+                createJsonWriter(record).beginObject()
+                        .name("Type").value("Summary")
+                        .name("SyncPointId").value(syncPoint.Id)
+                        .name("Folders").value(folders)
+                        .name("Files").value(files)
+                        .name("Bytes").value(bytes)
+                        .name("Errors").value(errors)
+                        .name("Milliseconds").value(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos))
+                        .endObject();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return record.append('\n').toString();
+        }
+    }
+
+    /**
+     * Counters of a scan, across all SyncPoints.
+     */
+    public static class Statistics {
+        private final AtomicLong syncPoints = new AtomicLong();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong folders = new AtomicLong();
+        private final AtomicLong files = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private volatile long startNanos;
+        private volatile long endNanos;
+
+        /**
+         * @return the number of SyncPoints completely scanned
+         */
+        public long getSyncPoints() {
+            return syncPoints.get();
+        }
+
+        /**
+         * @return the number of Folder listings sent
+         */
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getFolders() {
+            return folders.get();
+        }
+
+        public long getFiles() {
+            return files.get();
+        }
+
+        /**
+         * @return the total length of the Files found
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * @return the number of Folders that could not be listed
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return the time the scan has run, or took if it is done
+         */
+        public long getElapsedMillis() {
+            if (startNanos == 0) {
+                return 0;
+            }
+            return TimeUnit.NANOSECONDS.toMillis((endNanos == 0 ? System.nanoTime() : endNanos) - startNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d SyncPoints, %d folders, %d files, %d bytes, %d requests, %d errors in %d ms",
+                    getSyncPoints(), getFolders(), getFiles(), getBytes(), getRequests(), getErrors(),
+                    getElapsedMillis());
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package services;
+
+import entities.File;
+import entities.Folder;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * View of a Folder whose contents are listed on first access.
+ * <p>
+ * Creating a view costs no request; the subfolders and Files are only listed when they are first
+ * asked for, so a browsing tool pays for the Folders that are actually opened. The listing is held
+ * through a soft reference: under memory pressure the garbage collector may release it, and it is
+ * listed again on the next access. Subfolders are handed out as views themselves, created while
+ * they are iterated, so opening a Folder does not load anything below it.
+ */
+public class LazyFolder {
+
+    private final long syncPointId;
+    private final long folderId;
+    private final boolean suppressErrors;
+    private volatile String name;
+    private volatile String virtualPath;
+    private SoftReference<Folder> listing = new SoftReference<>(null);
+    private int loads;
+
+    /**
+     * Creates a view of a Folder. Nothing is listed until the contents are accessed.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param folderId
+     *            the Folder ID
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     */
+    public LazyFolder(long syncPointId, long folderId, boolean suppressErrors) {
+        this(syncPointId, folderId, null, null, suppressErrors);
+    }
+
+    private LazyFolder(long syncPointId, long folderId, String name, String virtualPath, boolean suppressErrors) {
+        this.syncPointId = syncPointId;
+        this.folderId = folderId;
+        this.name = name;
+        this.virtualPath = virtualPath;
+        this.suppressErrors = suppressErrors;
+    }
+
+    /**
+     * @return the ID of the SyncPoint the Folder belongs to; reading it does not list the Folder
+     */
+    public long getSyncPointId() {
+        return syncPointId;
+    }
+
+    /**
+     * @return the Folder ID; reading it does not list the Folder
+     */
+    public long getFolderId() {
+        return folderId;
+    }
+
+    /**
+     * @return the name, listing the Folder if it was not created from a parent listing
+     */
+    public String getName() {
+        if (name == null) {
+            load();
+        }
+        return name;
+    }
+
+    /**
+     * @return the virtual path, listing the Folder if it is not known yet
+     */
+    public String getVirtualPath() {
+        if (virtualPath == null) {
+            load();
+        }
+        return virtualPath;
+    }
+
+    /**
+     * @return the subfolders, as views that are listed when they are accessed
+     */
+    public Iterable<LazyFolder> getSubfolders() {
+        Folder[] folders = getListedFolders();
+        return () -> new Iterator<LazyFolder>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < folders.length;
+            }
+
+            @Override
+            public LazyFolder next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return createSubfolder(folders[next++]);
+            }
+        };
+    }
+
+    /**
+     * @return the Files of the Folder
+     */
+    public Iterable<File> getFiles() {
+        File[] files = getListedFiles();
+        return () -> Arrays.asList(files).iterator();
+    }
+
+    /**
+     * Finds a subfolder by name without creating views of the other subfolders.
+     *
+     * @param name
+     *            the subfolder name, compared ignoring case
+     * @return the subfolder or null if there is none with this name
+     */
+    public LazyFolder getSubfolder(String name) {
+        for (Folder folder : getListedFolders()) {
+            if (folder.Name != null && folder.Name.equalsIgnoreCase(name)) {
+                return createSubfolder(folder);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds a File by name.
+     *
+     * @param filename
+     *            the filename, compared ignoring case
+     * @return the {@link File} or null if there is none with this name
+     */
+    public File getFile(String filename) {
+        for (File file : getListedFiles()) {
+            if (file.Filename != null && file.Filename.equalsIgnoreCase(filename)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of subfolders, listing the Folder if it is not in memory;
+     *         0 if there are none or the Folder could not be listed
+     */
+    public int getSubfolderCount() {
+        return getListedFolders().length;
+    }
+
+    /**
+     * @return the number of Files, listing the Folder if it is not in memory;
+     *         0 if there are none or the Folder could not be listed
+     */
+    public int getFileCount() {
+        return getListedFiles().length;
+    }
+
+    /**
+     * @return true if the contents are in memory
+     */
+    public synchronized boolean isLoaded() {
+        return listing.get() != null;
+    }
+
+    /**
+     * @return the number of times the Folder was listed, including listings repeated after a release
+     */
+    public synchronized int getLoadCount() {
+        return loads;
+    }
+
+    /**
+     * Releases the contents; they are listed again on the next access, e.g. to see changes.
+     */
+    public synchronized void release() {
+        listing.clear();
+    }
+
+    /**
+     * Returns the listing, listing the Folder if it was never listed or was released.
+     *
+     * @return the {@link Folder} listing or null if it could not be listed
+     */
+    private synchronized Folder load() {
+        Folder folder = listing.get();
+        if (folder == null) {
+            folder = FolderService.getFolder(syncPointId, folderId, suppressErrors);
+            if (folder == null) {
+                return null;
+            }
+            loads++;
+            listing = new SoftReference<>(folder);
+            if (folder.Name != null) {
+                name = folder.Name;
+            }
+            if (folder.VirtualPath != null) {
+                virtualPath = folder.VirtualPath;
+            }
+        }
+        return folder;
+    }
+
+    private Folder[] getListedFolders() {
+        Folder folder = load();
+        return folder == null || folder.Folders == null ? new Folder[0] : folder.Folders;
+    }
+
+    private File[] getListedFiles() {
+        Folder folder = load();
+        return folder == null || folder.Files == null ? new File[0] : folder.Files;
+    }
+
+    private LazyFolder createSubfolder(Folder folder) {
+        String path = folder.VirtualPath;
+        String parentPath = virtualPath;
+        if (path == null && parentPath != null && !parentPath.isEmpty() && folder.Name != null) {
+            path = parentPath + folder.Name + parentPath.charAt(parentPath.length() - 1);
+        }
+        return new LazyFolder(syncPointId, folder.FolderId, folder.Name, path, suppressErrors);
+    }
+}
@@ -0,0 +1,729 @@
+package services;
+
+import entities.File;
+import entities.Folder;
+import entities.FolderStatus;
+import util.ConfigurationHelper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mirrors changes made to a local folder tree into a Folder of a SyncPoint as they happen.
+ * <p>
+ * The tree is watched with a {@link WatchService} instead of being scanned. Events are not acted on
+ * right away: every changed path waits until it has been quiet for the debounce time, so a file
+ * written in many small pieces, or saved several times in a row, is uploaded once with its final
+ * contents. New local folders are created remotely level by level, with one request per parent
+ * for all its new subfolders. Uploads run on a {@link TransferScheduler}; a file that changes again
+ * while it is being uploaded is uploaded once more after the upload has finished, and a failed upload
+ * is retried after a delay that grows with every failure.
+ * <p>
+ * Files that exist when the mirror starts are taken as already mirrored and only uploaded once they
+ * change. Deleted local folders and files are deleted remotely. A renamed folder or file is mirrored
+ * as a deleted one and a new one.
+ */
+public class LocalMirror implements Closeable {
+
+    private static final long MAX_RETRY_DELAY_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private static final WatchEvent.Kind<?>[] WATCHED_EVENTS = {
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE };
+
+    private final Path localRoot;
+    private final long syncPointId;
+    private final long rootFolderId;
+    private final long debounceNanos;
+    private final int concurrency;
+    private final boolean suppressErrors;
+    // the time of the last event of each path waiting to be mirrored
+    private final Map<Path, Long> pending = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private final Map<Path, Folder> remoteFolders = new ConcurrentHashMap<>();
+    // the local folders seen, so that a deleted path can be told to have been a folder
+    private final Set<Path> localDirectories = ConcurrentHashMap.newKeySet();
+    // the size and modification time of each file when it was last mirrored
+    private final Map<Path, long[]> mirroredFiles = new ConcurrentHashMap<>();
+    private final Set<Path> uploading = ConcurrentHashMap.newKeySet();
+    // the number of failed uploads of each file since it was last uploaded
+    private final Map<Path, Integer> failedUploads = new ConcurrentHashMap<>();
+    private final Statistics statistics = new Statistics();
+    private String storageEndpointUrl;
+    private WatchService watchService;
+    private TransferScheduler scheduler;
+    private Thread watcher;
+    private Thread flusher;
+    private volatile boolean closed;
+
+    /**
+     * Creates a mirror with the debounce time set by the mirrorDebounceMillis setting,
+     * uploading as many files at a time as the transferConcurrency setting allows.
+     *
+     * @param localRoot
+     *            the local folder to watch
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param rootFolderId
+     *            the ID of the Folder the local folder is mirrored into
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     */
+    public LocalMirror(Path localRoot, long syncPointId, long rootFolderId, boolean suppressErrors) {
+        this(localRoot, syncPointId, rootFolderId, ConfigurationHelper.getMirrorDebounceMillis(),
+                ConfigurationHelper.getTransferConcurrency(), suppressErrors);
+    }
+
+    /**
+     * Creates a mirror.
+     *
+     * @param localRoot
+     *            the local folder to watch
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param rootFolderId
+     *            the ID of the Folder the local folder is mirrored into
+     * @param debounceMillis
+     *            the time a path must stay unchanged before it is mirrored
+     * @param concurrency
+     *            the number of files uploaded at the same time
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     */
+    public LocalMirror(Path localRoot, long syncPointId, long rootFolderId, long debounceMillis, int concurrency,
+                       boolean suppressErrors) {
+        this.localRoot = localRoot.toAbsolutePath().normalize();
+        this.syncPointId = syncPointId;
+        this.rootFolderId = rootFolderId;
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, debounceMillis));
+        this.concurrency = Math.max(1, concurrency);
+        this.suppressErrors = suppressErrors;
+    }
+
+    /**
+     * Starts watching the local folder. Returns once the whole tree is watched.
+     *
+     * @return false if the Folder or its storage endpoint could not be retrieved or the tree could not be watched
+     */
+    public synchronized boolean start() {
+        if (watcher != null) {
+            throw new IllegalStateException("The mirror has already been started.");
+        }
+        storageEndpointUrl = FileService.getDownloadPlan().getStorageEndpointUrl(syncPointId, suppressErrors);
+        if (storageEndpointUrl == null) {
+            return false;
+        }
+        Folder rootFolder = FolderService.getFolder(syncPointId, rootFolderId, suppressErrors);
+        if (rootFolder == null) {
+            return false;
+        }
+        remoteFolders.put(localRoot, rootFolder);
+
+        try {
+            watchService = localRoot.getFileSystem().newWatchService();
+            watchTree(localRoot, false);
+        } catch (IOException e) {
+            if (!suppressErrors) {
+                e.printStackTrace();
+            }
+            closeWatchService();
+            return false;
+        }
+
+        scheduler = new TransferScheduler(concurrency, concurrency * 4);
+        watcher = new Thread(this::watch, "local-mirror-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        flusher = new Thread(this::flush, "local-mirror");
+        flusher.setDaemon(true);
+        flusher.start();
+        return true;
+    }
+
+    /**
+     * Stops watching. Changes that are still waiting for the debounce time are mirrored right away,
+     * and the method returns once all uploads have finished.
+     */
+    @Override
+    public void close() {
+        Thread watcher;
+        Thread flusher;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            watcher = this.watcher;
+            flusher = this.flusher;
+        }
+        if (watcher == null) {
+            return;
+        }
+        closeWatchService();
+        watcher.interrupt();
+        flusher.interrupt();
+        try {
+            watcher.join();
+            flusher.join();
+            // including the uploads waiting to be retried
+            mirror(collect(Long.MIN_VALUE));
+            scheduler.shutdown(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the progress of the mirror
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Registers a folder and all folders below it with the watch service.
+     *
+     * @param directory
+     *            the folder
+     * @param created
+     *            true if the folder is new, so that it and everything in it is mirrored;
+     *            otherwise the files are taken as already mirrored
+     */
+    private void watchTree(Path directory, boolean created) throws IOException {
+        long now = System.nanoTime();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                watchedDirectories.put(dir.register(watchService, WATCHED_EVENTS), dir);
+                localDirectories.add(dir);
+                if (created) {
+                    pending.put(dir, now);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (created) {
+                    pending.put(file, now);
+                } else {
+                    mirroredFiles.put(file, new long[] { attrs.size(), attrs.lastModifiedTime().toMillis() });
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // removed while it was walked; its delete event follows
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Records the events of the watch service, keeping only the time of the last event of each path.
+     */
+    private void watch() {
+        try {
+            while (!closed) {
+                WatchKey key = watchService.take();
+                Path directory = watchedDirectories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // events were lost, so everything that changed since the last scan is looked for
+                        statistics.overflows.incrementAndGet();
+                        rescan();
+                        continue;
+                    }
+                    if (directory == null) {
+                        continue;
+                    }
+                    Path path = directory.resolve((Path) event.context());
+                    statistics.events.addAndGet(event.count());
+                    boolean waiting = pending.put(path, System.nanoTime()) != null;
+                    statistics.coalesced.addAndGet(waiting ? event.count() : event.count() - 1);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                            && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        try {
+                            watchTree(path, true);
+                        } catch (IOException e) {
+                            if (!suppressErrors) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirectories.remove(key);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // closed by close()
+        }
+    }
+
+    /**
+     * Marks every folder and every file that differs from what was mirrored as pending.
+     */
+    private void rescan() {
+        long now = System.nanoTime();
+        try {
+            Files.walkFileTree(localRoot, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    // registering a folder again returns the key it is already watched with
+                    watchedDirectories.put(dir.register(watchService, WATCHED_EVENTS), dir);
+                    localDirectories.add(dir);
+                    if (!remoteFolders.containsKey(dir)) {
+                        pending.put(dir, now);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && !isMirrored(file, attrs.size(), attrs.lastModifiedTime().toMillis())) {
+                        pending.put(file, now);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            if (!suppressErrors) {
+                e.printStackTrace();
+            }
+        }
+        // folders and files deleted while the events were lost
+        for (Path directory : localDirectories) {
+            if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+                pending.put(directory, now);
+            }
+        }
+        for (Path file : mirroredFiles.keySet()) {
+            if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+                pending.put(file, now);
+            }
+        }
+    }
+
+    /**
+     * Mirrors the paths that have been quiet for the debounce time, checking several times per debounce time.
+     */
+    private void flush() {
+        long sleepMillis = Math.max(10, TimeUnit.NANOSECONDS.toMillis(debounceNanos) / 4);
+        try {
+            while (!closed) {
+                Thread.sleep(sleepMillis);
+                mirror(collect(debounceNanos));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes the paths whose last event is at least the given time ago out of the pending ones.
+     */
+    private List<Path> collect(long quietNanos) {
+        long now = System.nanoTime();
+        List<Path> ready = new ArrayList<>();
+        for (Map.Entry<Path, Long> entry : pending.entrySet()) {
+            long eventNanos = entry.getValue();
+            // an event recorded after the entry was read keeps the path pending
+            if (now - eventNanos >= quietNanos && pending.remove(entry.getKey(), eventNanos)) {
+                ready.add(entry.getKey());
+            }
+        }
+        // parents before children
+        ready.sort(Comparator.comparingInt(Path::getNameCount));
+        return ready;
+    }
+
+    private void mirror(List<Path> paths) throws InterruptedException {
+        if (paths.isEmpty()) {
+            return;
+        }
+        List<Path> directories = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        for (Path path : paths) {
+            if (!path.startsWith(localRoot) || path.equals(localRoot)) {
+                continue;
+            }
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                directories.add(path);
+            } else if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                files.add(path);
+                directories.add(path.getParent());
+            } else if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                delete(path);
+            }
+        }
+        createFolders(directories);
+
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            try {
+                upload(file);
+            } catch (InterruptedException e) {
+                // mirrored by close() instead
+                for (Path remaining : files.subList(i, files.size())) {
+                    pending.putIfAbsent(remaining, System.nanoTime());
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Creates the remote Folders that are missing for the given local folders and their parents,
+     * one level at a time, with one request per parent.
+     */
+    private void createFolders(List<Path> directories) {
+        Map<Integer, Map<Path, List<Path>>> levels = new TreeMap<>();
+        for (Path directory : directories) {
+            // the missing parents as well, up to the first one that exists remotely
+            for (Path path = directory; !remoteFolders.containsKey(path) && path.startsWith(localRoot);
+                 path = path.getParent()) {
+                List<Path> children = levels.computeIfAbsent(path.getNameCount(), level -> new LinkedHashMap<>())
+                        .computeIfAbsent(path.getParent(), parent -> new ArrayList<>());
+                if (children.contains(path)) {
+                    break;
+                }
+                children.add(path);
+            }
+        }
+        for (Map<Path, List<Path>> level : levels.values()) {
+            for (Map.Entry<Path, List<Path>> entry : level.entrySet()) {
+                createFolders(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void createFolders(Path parent, List<Path> directories) {
+        Folder parentFolder = remoteFolders.get(parent);
+        if (parentFolder == null) {
+            // the parent could not be created
+            statistics.failures.addAndGet(directories.size());
+            return;
+        }
+
+        // the subfolders that exist already are only looked up, e.g. after a restart
+        Map<String, Folder> existing = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        Folder listing = FolderService.getFolder(syncPointId, parentFolder.FolderId, suppressErrors);
+        if (listing != null && listing.Folders != null) {
+            for (Folder folder : listing.Folders) {
+                existing.put(folder.Name, folder);
+            }
+        }
+        List<Folder> missing = new ArrayList<>();
+        for (Path directory : directories) {
+            String name = directory.getFileName().toString();
+            if (!existing.containsKey(name)) {
+                Folder folder = new Folder();
+                folder.Name = name;
+                folder.Status = FolderStatus.Added;
+                missing.add(folder);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Folder[] created = FolderService.createFolders(syncPointId, parentFolder.FolderId,
+                    missing.toArray(new Folder[0]));
+            if (created != null) {
+                for (Folder folder : created) {
+                    existing.put(folder.Name, folder);
+                }
+                statistics.foldersCreated.addAndGet(created.length);
+            }
+        }
+
+        for (Path directory : directories) {
+            Folder folder = existing.get(directory.getFileName().toString());
+            if (folder == null) {
+                if (!suppressErrors) {
+                    System.err.println(String.format("Could not create folder '%s' in SyncPoint %d",
+                            directory, syncPointId));
+                }
+                statistics.failures.incrementAndGet();
+                continue;
+            }
+            putRemoteFolder(directory, parentFolder, folder);
+        }
+    }
+
+    /**
+     * Returns the remote Folder of a local folder. A folder this mirror has not created or looked up yet,
+     * e.g. one that existed when the mirror started, is looked up by name in the listing of its parent.
+     *
+     * @return the {@link Folder} or null if there is none with the name of the local folder
+     */
+    private Folder getRemoteFolder(Path directory) {
+        Folder folder = remoteFolders.get(directory);
+        if (folder != null || directory.equals(localRoot) || !directory.startsWith(localRoot)) {
+            return folder;
+        }
+        Folder parentFolder = getRemoteFolder(directory.getParent());
+        if (parentFolder == null) {
+            return null;
+        }
+        Folder listing = FolderService.getFolder(syncPointId, parentFolder.FolderId, suppressErrors);
+        if (listing == null || listing.Folders == null) {
+            return null;
+        }
+        String name = directory.getFileName().toString();
+        for (Folder subfolder : listing.Folders) {
+            if (name.equalsIgnoreCase(subfolder.Name)) {
+                putRemoteFolder(directory, parentFolder, subfolder);
+                return subfolder;
+            }
+        }
+        return null;
+    }
+
+    private void putRemoteFolder(Path directory, Folder parentFolder, Folder folder) {
+        if (folder.VirtualPath == null && parentFolder.VirtualPath != null && !parentFolder.VirtualPath.isEmpty()) {
+            String parentPath = parentFolder.VirtualPath;
+            folder.VirtualPath = parentPath + folder.Name + parentPath.charAt(parentPath.length() - 1);
+        }
+        remoteFolders.put(directory, folder);
+    }
+
+    private void delete(Path path) {
+        failedUploads.remove(path);
+        if (mirroredFiles.remove(path) != null) {
+            deleteFile(path);
+            return;
+        }
+        if (!localDirectories.remove(path)) {
+            // a file that was never uploaded, or a path deleted together with its parent folder
+            return;
+        }
+        Folder folder = getRemoteFolder(path);
+        remoteFolders.remove(path);
+        if (folder != null) {
+            FolderService.deleteFolder(syncPointId, folder.FolderId);
+            statistics.foldersDeleted.incrementAndGet();
+        }
+        for (Set<Path> paths : Arrays.asList(remoteFolders.keySet(), localDirectories, mirroredFiles.keySet(),
+                failedUploads.keySet())) {
+            paths.removeIf(below -> below.startsWith(path));
+        }
+    }
+
+    /**
+     * Deletes the remote File of a deleted local file, looking it up by name in the listing of its Folder.
+     */
+    private void deleteFile(Path path) {
+        Folder folder = getRemoteFolder(path.getParent());
+        Folder listing = folder == null ? null : FolderService.getFolder(syncPointId, folder.FolderId, suppressErrors);
+        if (listing == null || listing.Files == null) {
+            return;
+        }
+        String name = path.getFileName().toString();
+        for (File file : listing.Files) {
+            if (name.equalsIgnoreCase(file.Filename)) {
+                if (file.VirtualPath == null && listing.VirtualPath != null) {
+                    file.VirtualPath = listing.VirtualPath + file.Filename;
+                }
+                FileService.deleteFile(syncPointId, file);
+                statistics.filesDeleted.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private void upload(Path file) throws InterruptedException {
+        Folder folder = remoteFolders.get(file.getParent());
+        long size;
+        long modified;
+        try {
+            size = Files.size(file);
+            modified = Files.getLastModifiedTime(file, LinkOption.NOFOLLOW_LINKS).toMillis();
+        } catch (IOException e) {
+            // removed in the meantime
+            return;
+        }
+        if (folder == null || folder.VirtualPath == null) {
+            // the folder is created again when the file is retried
+            retryLater(file);
+            return;
+        }
+        if (isMirrored(file, size, modified)) {
+            statistics.unchanged.incrementAndGet();
+            return;
+        }
+        if (!uploading.add(file)) {
+            // uploaded again once the upload in progress has finished
+            pending.putIfAbsent(file, System.nanoTime());
+            return;
+        }
+        try {
+            scheduler.submit((byte) 0, size, () -> upload(file, folder.VirtualPath, size, modified));
+        } catch (InterruptedException | RuntimeException e) {
+            uploading.remove(file);
+            throw e;
+        }
+    }
+
+    private boolean upload(Path file, String folderPath, long size, long modified) {
+        try {
+            if (FileService.uploadFile(storageEndpointUrl, folderPath, syncPointId, file) == null) {
+                retryLater(file);
+                return false;
+            }
+            failedUploads.remove(file);
+            mirroredFiles.put(file, new long[] { size, modified });
+            statistics.uploads.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            if (!suppressErrors) {
+                e.printStackTrace();
+            }
+            retryLater(file);
+            return false;
+        } finally {
+            uploading.remove(file);
+        }
+    }
+
+    /**
+     * Puts a file whose upload failed back among the pending paths, to be uploaded again after a delay
+     * that doubles with every failure, from the debounce time (at least a second) up to five minutes.
+     * A new change of the file makes it pending again right away.
+     */
+    private void retryLater(Path file) {
+        statistics.failures.incrementAndGet();
+        int failures = failedUploads.merge(file, 1, Integer::sum);
+        long delayNanos = Math.max(debounceNanos, TimeUnit.SECONDS.toNanos(1)) << Math.min(failures - 1, 16);
+        delayNanos = Math.min(delayNanos, MAX_RETRY_DELAY_NANOS);
+        // a path is collected once its last event is the debounce time ago, so the event is dated ahead
+        pending.putIfAbsent(file, System.nanoTime() + delayNanos - debounceNanos);
+    }
+
+    private boolean isMirrored(Path file, long size, long modified) {
+        long[] mirrored = mirroredFiles.get(file);
+        return mirrored != null && mirrored[0] == size && mirrored[1] == modified;
+    }
+
+    private void closeWatchService() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                if (!suppressErrors) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Counters of a mirror.
+     */
+    public static class Statistics {
+        private final AtomicLong events = new AtomicLong();
+        private final AtomicLong coalesced = new AtomicLong();
+        private final AtomicLong overflows = new AtomicLong();
+        private final AtomicLong uploads = new AtomicLong();
+        private final AtomicLong unchanged = new AtomicLong();
+        private final AtomicLong foldersCreated = new AtomicLong();
+        private final AtomicLong foldersDeleted = new AtomicLong();
+        private final AtomicLong filesDeleted = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        /**
+         * @return the number of file system events received
+         */
+        public long getEvents() {
+            return events.get();
+        }
+
+        /**
+         * @return the number of events merged into an earlier event of the same path
+         */
+        public long getCoalesced() {
+            return coalesced.get();
+        }
+
+        /**
+         * @return the number of times events were lost and the tree was scanned instead
+         */
+        public long getOverflows() {
+            return overflows.get();
+        }
+
+        /**
+         * @return the number of files uploaded
+         */
+        public long getUploads() {
+            return uploads.get();
+        }
+
+        /**
+         * @return the number of changed paths that turned out to be unchanged files
+         */
+        public long getUnchanged() {
+            return unchanged.get();
+        }
+
+        public long getFoldersCreated() {
+            return foldersCreated.get();
+        }
+
+        public long getFoldersDeleted() {
+            return foldersDeleted.get();
+        }
+
+        public long getFilesDeleted() {
+            return filesDeleted.get();
+        }
+
+        /**
+         * @return the number of failed attempts to mirror a file or folder
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d events (%d coalesced, %d overflows), %d uploads, %d unchanged, "
+                            + "%d folders created, %d deleted, %d files deleted, %d failures",
+                    getEvents(), getCoalesced(), getOverflows(), getUploads(), getUnchanged(),
+                    getFoldersCreated(), getFoldersDeleted(), getFilesDeleted(), getFailures());
+        }
+    }
+}
@@ -0,0 +1,712 @@
+package services;
+
+import entities.File;
+import entities.Folder;
+import entities.SyncPoint;
+import org.apache.commons.lang.StringUtils;
+import util.ConfigurationHelper;
+import util.RecordLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Persistent local index of the remote namespace: SyncPoints, their Folders and their Files.
+ * <p>
+ * The index is built by crawling a SyncPoint with {@link #refresh(long, long, boolean)} and kept up to
+ * date by refreshing it again or refreshing single Folders; only what changed since the last refresh
+ * is written. Lookups are answered from memory, so repeated jobs can work on the index instead of
+ * listing every Folder again.
+ * <p>
+ * The index is stored in a {@link RecordLog} that is replayed on startup, one record per change of
+ * a SyncPoint, Folder or File. Records of entries that were changed again or removed are stale; once
+ * they outnumber the live ones, the log is rewritten with one record per entry on load.
+ */
+public class MetadataIndex implements Closeable {
+
+    private static final int RECORD_VERSION = 1;
+    private static final int MAX_RECORD_LENGTH = 256 * 1024;
+
+    private static final byte SYNC_POINT = 1;
+    private static final byte FOLDER = 2;
+    private static final byte FILE = 3;
+    private static final byte REMOVE_FOLDER = 4;
+    private static final byte REMOVE_FILE = 5;
+
+    private static MetadataIndex defaultIndex = null;
+    private static boolean defaultIndexResolved = false;
+
+    private final Path indexFile;
+    private final Map<Long, SyncPointEntry> syncPoints = new HashMap<>();
+    private final RecordLog log;
+    private long liveRecords;
+    private long staleRecords;
+
+    /**
+     * Opens (or creates) an index stored in the given file.
+     *
+     * @param indexFile
+     *            the index file
+     */
+    public MetadataIndex(Path indexFile) throws IOException {
+        this.indexFile = indexFile.toAbsolutePath();
+        Path parent = this.indexFile.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        log = new RecordLog(this.indexFile, "metadata index", MAX_RECORD_LENGTH);
+        log.replay(record -> apply(decode(record)));
+        if (staleRecords > liveRecords) {
+            log.rewrite(this::writeEntries);
+            staleRecords = 0;
+        }
+        log.open();
+    }
+
+    /**
+     * Returns the index configured with the metadataIndexFilePath setting.
+     *
+     * @return the shared index or null if no index is configured or it cannot be opened
+     */
+    public static synchronized MetadataIndex getDefault() {
+        if (!defaultIndexResolved) {
+            defaultIndexResolved = true;
+            String path = ConfigurationHelper.getMetadataIndexFilePath();
+            if (StringUtils.isNotBlank(path)) {
+                try {
+                    defaultIndex = new MetadataIndex(Paths.get(path));
+                } catch (IOException e) {
+                    System.err.println(String.format("Could not open metadata index '%s'", path));
+                    e.printStackTrace();
+                }
+            }
+        }
+        return defaultIndex;
+    }
+
+    /**
+     * Crawls a Folder tree and updates the index with every Folder listed.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param folderId
+     *            the Folder ID to start at, usually the SyncPoint RootFolderId
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return true if every Folder was listed and indexed
+     */
+    public boolean refresh(long syncPointId, long folderId, boolean suppressErrors) {
+        FolderCrawler crawler = new FolderCrawler(syncPointId, suppressErrors);
+        boolean indexed = true;
+        // Folders are listed in no particular order, so a Folder that left its parent may not have been
+        // listed at its new place yet; removals are decided once the whole tree has been listed
+        Set<Long> listedFolders = new HashSet<>();
+        Set<Long> missingFolders = new LinkedHashSet<>();
+        try (Stream<FolderCrawler.Item> items = crawler.crawl(folderId)) {
+            for (FolderCrawler.Item item : (Iterable<FolderCrawler.Item>) items::iterator) {
+                if (!item.isFile()) {
+                    listedFolders.add(item.getFolder().FolderId);
+                    indexed &= update(syncPointId, item.getFolder(), missingFolders, suppressErrors);
+                }
+            }
+        }
+        boolean complete = crawler.getStatistics().getErrors() == 0;
+        if (complete) {
+            missingFolders.removeAll(listedFolders);
+            indexed &= remove(syncPointId, missingFolders, suppressErrors);
+        }
+        System.out.println(String.format("Indexed SyncPoint %d: %s", syncPointId, crawler.getStatistics()));
+        return indexed && complete;
+    }
+
+    /**
+     * Crawls a whole SyncPoint and updates the index.
+     *
+     * @param syncPoint
+     *            the {@link SyncPoint} with at least Id and RootFolderId
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return true if every Folder was listed and indexed
+     */
+    public boolean refresh(SyncPoint syncPoint, boolean suppressErrors) {
+        if (!putSyncPoint(syncPoint, suppressErrors)) {
+            return false;
+        }
+        return refresh(syncPoint.Id, syncPoint.RootFolderId, suppressErrors);
+    }
+
+    /**
+     * Lists a single Folder and updates its entry, its Files and its direct subfolders.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param folderId
+     *            the Folder ID
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return true if the Folder was listed and indexed
+     */
+    public boolean refreshFolder(long syncPointId, long folderId, boolean suppressErrors) {
+        Folder folder = FolderService.getFolder(syncPointId, folderId, suppressErrors);
+        return folder != null && update(syncPointId, folder, null, suppressErrors);
+    }
+
+    /**
+     * Returns an indexed Folder in the shape returned by {@link FolderService#getFolder(long, long, boolean)}:
+     * with its Files and its direct subfolders.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param folderId
+     *            the Folder ID
+     * @return the {@link Folder} or null if it is not indexed
+     */
+    public synchronized Folder getFolder(long syncPointId, long folderId) {
+        SyncPointEntry syncPoint = syncPoints.get(syncPointId);
+        FolderEntry entry = syncPoint == null ? null : syncPoint.folders.get(folderId);
+        if (entry == null) {
+            return null;
+        }
+        Folder folder = entry.toFolder(syncPointId);
+        List<Folder> subfolders = new ArrayList<>();
+        for (long subfolderId : entry.subfolderIds) {
+            FolderEntry subfolder = syncPoint.folders.get(subfolderId);
+            if (subfolder != null) {
+                subfolders.add(subfolder.toFolder(syncPointId));
+            }
+        }
+        List<File> files = new ArrayList<>();
+        for (long fileId : entry.fileIds) {
+            FileEntry file = syncPoint.files.get(fileId);
+            if (file != null) {
+                files.add(file.toFile(syncPointId, entry.virtualPath));
+            }
+        }
+        folder.Folders = subfolders.toArray(new Folder[0]);
+        folder.Files = files.toArray(new File[0]);
+        return folder;
+    }
+
+    /**
+     * Returns an indexed File.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param fileId
+     *            the File ID
+     * @return the {@link File} or null if it is not indexed
+     */
+    public synchronized File getFile(long syncPointId, long fileId) {
+        SyncPointEntry syncPoint = syncPoints.get(syncPointId);
+        FileEntry file = syncPoint == null ? null : syncPoint.files.get(fileId);
+        if (file == null) {
+            return null;
+        }
+        FolderEntry folder = syncPoint.folders.get(file.folderId);
+        return file.toFile(syncPointId, folder == null ? null : folder.virtualPath);
+    }
+
+    /**
+     * Passes every indexed File of a SyncPoint to an action.
+     * The index is locked while the action runs, so the action should not block.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param action
+     *            the action to run for each File
+     */
+    public synchronized void forEachFile(long syncPointId, Consumer<File> action) {
+        SyncPointEntry syncPoint = syncPoints.get(syncPointId);
+        if (syncPoint == null) {
+            return;
+        }
+        for (FileEntry file : syncPoint.files.values()) {
+            FolderEntry folder = syncPoint.folders.get(file.folderId);
+            action.accept(file.toFile(syncPointId, folder == null ? null : folder.virtualPath));
+        }
+    }
+
+    /**
+     * @return the IDs of the SyncPoints with indexed Folders
+     */
+    public synchronized Set<Long> getSyncPointIds() {
+        return new TreeSet<>(syncPoints.keySet());
+    }
+
+    /**
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @return the root Folder ID recorded with {@link #refresh(SyncPoint, boolean)}, or 0 if it is not known
+     */
+    public synchronized long getRootFolderId(long syncPointId) {
+        SyncPointEntry syncPoint = syncPoints.get(syncPointId);
+        return syncPoint == null ? 0 : syncPoint.rootFolderId;
+    }
+
+    /**
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @return the number of indexed Folders of the SyncPoint
+     */
+    public synchronized int getFolderCount(long syncPointId) {
+        SyncPointEntry syncPoint = syncPoints.get(syncPointId);
+        return syncPoint == null ? 0 : syncPoint.folders.size();
+    }
+
+    /**
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @return the number of indexed Files of the SyncPoint
+     */
+    public synchronized int getFileCount(long syncPointId) {
+        SyncPointEntry syncPoint = syncPoints.get(syncPointId);
+        return syncPoint == null ? 0 : syncPoint.files.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    private synchronized boolean putSyncPoint(SyncPoint syncPoint, boolean suppressErrors) {
+        SyncPointEntry entry = getSyncPoint(syncPoint.Id);
+        if (entry.rootFolderId == syncPoint.RootFolderId && Objects.equals(entry.name, syncPoint.Name)) {
+            return true;
+        }
+        Record record = new Record(SYNC_POINT, syncPoint.Id, syncPoint.RootFolderId, 0, syncPoint.Name, null,
+                null, null, 0, null, null);
+        try {
+            append(record);
+            apply(record);
+            log.flush();
+            return true;
+        } catch (IOException e) {
+            reportWriteError(e, suppressErrors);
+            return false;
+        }
+    }
+
+    /**
+     * Updates the entry of a listed Folder, its Files and its direct subfolders,
+     * writing records only for what changed. Files that are no longer listed are removed.
+     * Subfolders that are no longer listed are removed together with everything below them,
+     * or only collected if a crawl is still running, as they may have moved to a Folder not listed yet.
+     *
+     * @param missingFolders
+     *            receives the subfolders that are no longer listed, or null to remove them right away
+     */
+    private synchronized boolean update(long syncPointId, Folder folder, Set<Long> missingFolders,
+                                        boolean suppressErrors) {
+        SyncPointEntry syncPoint = getSyncPoint(syncPointId);
+        FolderEntry existing = syncPoint.folders.get(folder.FolderId);
+        List<Record> changes = new ArrayList<>();
+
+        long parentFolderId = existing == null ? 0 : existing.parentFolderId;
+        String name = existing != null && folder.Name == null ? existing.name : folder.Name;
+        String virtualPath = existing != null && folder.VirtualPath == null ? existing.virtualPath : folder.VirtualPath;
+        changes.add(folderRecord(syncPointId, folder.FolderId, parentFolderId, name, virtualPath));
+
+        Set<Long> listedFolders = new LinkedHashSet<>();
+        if (folder.Folders != null) {
+            for (Folder subfolder : folder.Folders) {
+                listedFolders.add(subfolder.FolderId);
+                changes.add(folderRecord(syncPointId, subfolder.FolderId, folder.FolderId, subfolder.Name,
+                        subfolder.VirtualPath));
+            }
+        }
+        Set<Long> listedFiles = new LinkedHashSet<>();
+        if (folder.Files != null) {
+            for (File file : folder.Files) {
+                listedFiles.add(file.FileId);
+                changes.add(new Record(FILE, syncPointId, file.FileId, folder.FolderId, file.Filename,
+                        file.LatestVersionId, file.Hash, null, file.Length, file.CreationTimeUtc,
+                        file.LastWriteTimeUtc));
+            }
+        }
+        if (existing != null) {
+            for (long subfolderId : existing.subfolderIds) {
+                if (listedFolders.contains(subfolderId)) {
+                    continue;
+                }
+                if (missingFolders != null) {
+                    missingFolders.add(subfolderId);
+                } else {
+                    collectRemovals(syncPoint, syncPointId, subfolderId, changes);
+                }
+            }
+            for (long fileId : existing.fileIds) {
+                if (!listedFiles.contains(fileId)) {
+                    changes.add(new Record(REMOVE_FILE, syncPointId, fileId, 0, null, null, null, null, 0, null, null));
+                }
+            }
+        }
+
+        return write(syncPoint, changes, suppressErrors);
+    }
+
+    /**
+     * Removes Folders that were not found anywhere in a completed crawl, with everything below them.
+     */
+    private synchronized boolean remove(long syncPointId, Set<Long> folderIds, boolean suppressErrors) {
+        SyncPointEntry syncPoint = getSyncPoint(syncPointId);
+        List<Record> changes = new ArrayList<>();
+        for (long folderId : folderIds) {
+            if (syncPoint.folders.containsKey(folderId)) {
+                collectRemovals(syncPoint, syncPointId, folderId, changes);
+            }
+        }
+        return write(syncPoint, changes, suppressErrors);
+    }
+
+    private boolean write(SyncPointEntry syncPoint, List<Record> changes, boolean suppressErrors) {
+        try {
+            for (Record change : changes) {
+                if (isChange(syncPoint, change)) {
+                    append(change);
+                    apply(change);
+                }
+            }
+            log.flush();
+            return true;
+        } catch (IOException e) {
+            reportWriteError(e, suppressErrors);
+            return false;
+        }
+    }
+
+    private void collectRemovals(SyncPointEntry syncPoint, long syncPointId, long folderId, List<Record> changes) {
+        FolderEntry folder = syncPoint.folders.get(folderId);
+        if (folder != null) {
+            for (long subfolderId : folder.subfolderIds) {
+                collectRemovals(syncPoint, syncPointId, subfolderId, changes);
+            }
+            for (long fileId : folder.fileIds) {
+                changes.add(new Record(REMOVE_FILE, syncPointId, fileId, 0, null, null, null, null, 0, null, null));
+            }
+        }
+        changes.add(new Record(REMOVE_FOLDER, syncPointId, folderId, 0, null, null, null, null, 0, null, null));
+    }
+
+    private static Record folderRecord(long syncPointId, long folderId, long parentFolderId, String name,
+                                       String virtualPath) {
+        return new Record(FOLDER, syncPointId, folderId, parentFolderId, name, null, null, virtualPath, 0, null,
+                null);
+    }
+
+    /**
+     * Checks whether a record would change the index, so unchanged entries are not written again.
+     */
+    private static boolean isChange(SyncPointEntry syncPoint, Record record) {
+        switch (record.type) {
+            case FOLDER:
+                FolderEntry folder = syncPoint.folders.get(record.id);
+                return folder == null
+                        || folder.parentFolderId != record.parentId
+                        || !Objects.equals(folder.name, record.name)
+                        || !Objects.equals(folder.virtualPath, record.virtualPath);
+            case FILE:
+                FileEntry file = syncPoint.files.get(record.id);
+                return file == null
+                        || file.folderId != record.parentId
+                        || file.length != record.length
+                        || !Objects.equals(file.filename, record.name)
+                        || !Objects.equals(file.latestVersionId, record.versionId)
+                        || !Objects.equals(file.hash, record.hash)
+                        || !Objects.equals(file.creationTimeUtc, record.creationTimeUtc)
+                        || !Objects.equals(file.lastWriteTimeUtc, record.lastWriteTimeUtc);
+            case REMOVE_FOLDER:
+                return syncPoint.folders.containsKey(record.id);
+            case REMOVE_FILE:
+                return syncPoint.files.containsKey(record.id);
+            default:
+                return true;
+        }
+    }
+
+    private SyncPointEntry getSyncPoint(long syncPointId) {
+        return syncPoints.computeIfAbsent(syncPointId, key -> new SyncPointEntry());
+    }
+
+    /**
+     * Applies a record to the in-memory index and keeps the live and stale record counts.
+     */
+    private void apply(Record record) {
+        SyncPointEntry syncPoint = getSyncPoint(record.syncPointId);
+        switch (record.type) {
+            case SYNC_POINT:
+                if (syncPoint.rootFolderId != 0 || syncPoint.name != null) {
+                    staleRecords++;
+                } else {
+                    liveRecords++;
+                }
+                syncPoint.rootFolderId = record.id;
+                syncPoint.name = record.name;
+                break;
+            case FOLDER: {
+                FolderEntry folder = syncPoint.folders.get(record.id);
+                if (folder == null) {
+                    // adopt the children recorded before the Folder itself
+                    folder = syncPoint.placeholders.remove(record.id);
+                    if (folder == null) {
+                        folder = new FolderEntry(record.id);
+                    }
+                    syncPoint.folders.put(record.id, folder);
+                    liveRecords++;
+                } else {
+                    staleRecords++;
+                    syncPoint.getFolder(folder.parentFolderId).subfolderIds.remove(record.id);
+                }
+                folder.parentFolderId = record.parentId;
+                folder.name = record.name;
+                folder.virtualPath = record.virtualPath;
+                syncPoint.getFolder(record.parentId).subfolderIds.add(record.id);
+                break;
+            }
+            case FILE: {
+                FileEntry file = syncPoint.files.get(record.id);
+                if (file == null) {
+                    file = new FileEntry(record.id);
+                    syncPoint.files.put(record.id, file);
+                    liveRecords++;
+                } else {
+                    staleRecords++;
+                    syncPoint.getFolder(file.folderId).fileIds.remove(record.id);
+                }
+                file.folderId = record.parentId;
+                file.filename = record.name;
+                file.latestVersionId = record.versionId;
+                file.hash = record.hash;
+                file.length = record.length;
+                file.creationTimeUtc = record.creationTimeUtc;
+                file.lastWriteTimeUtc = record.lastWriteTimeUtc;
+                syncPoint.getFolder(record.parentId).fileIds.add(record.id);
+                break;
+            }
+            case REMOVE_FOLDER: {
+                FolderEntry folder = syncPoint.folders.remove(record.id);
+                if (folder != null) {
+                    liveRecords--;
+                    syncPoint.getFolder(folder.parentFolderId).subfolderIds.remove(record.id);
+                }
+                staleRecords += 2;
+                break;
+            }
+            case REMOVE_FILE: {
+                FileEntry file = syncPoint.files.remove(record.id);
+                if (file != null) {
+                    liveRecords--;
+                    syncPoint.getFolder(file.folderId).fileIds.remove(record.id);
+                }
+                staleRecords += 2;
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private void append(Record record) throws IOException {
+        log.append(encode(record));
+    }
+
+    private void reportWriteError(IOException e, boolean suppressErrors) {
+        if (!suppressErrors) {
+            System.err.println(String.format("Could not update metadata index '%s'", indexFile));
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes one record per entry, the contents of a rewritten log.
+     */
+    private void writeEntries(RecordLog out) throws IOException {
+        for (Map.Entry<Long, SyncPointEntry> syncPointEntry : syncPoints.entrySet()) {
+            long syncPointId = syncPointEntry.getKey();
+            SyncPointEntry syncPoint = syncPointEntry.getValue();
+            if (syncPoint.rootFolderId != 0 || syncPoint.name != null) {
+                out.append(encode(new Record(SYNC_POINT, syncPointId, syncPoint.rootFolderId, 0, syncPoint.name,
+                        null, null, null, 0, null, null)));
+            }
+            for (FolderEntry folder : syncPoint.folders.values()) {
+                out.append(encode(folderRecord(syncPointId, folder.folderId, folder.parentFolderId, folder.name,
+                        folder.virtualPath)));
+            }
+            for (FileEntry file : syncPoint.files.values()) {
+                out.append(encode(new Record(FILE, syncPointId, file.fileId, file.folderId, file.filename,
+                        file.latestVersionId, file.hash, null, file.length, file.creationTimeUtc,
+                        file.lastWriteTimeUtc)));
+            }
+        }
+    }
+
+    private static byte[] encode(Record entry) throws IOException {
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(128);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeByte(RECORD_VERSION);
+        record.writeByte(entry.type);
+        record.writeLong(entry.syncPointId);
+        record.writeLong(entry.id);
+        record.writeLong(entry.parentId);
+        record.writeLong(entry.length);
+        writeString(record, entry.name);
+        writeString(record, entry.versionId);
+        writeString(record, entry.hash);
+        writeString(record, entry.virtualPath);
+        writeString(record, entry.creationTimeUtc);
+        writeString(record, entry.lastWriteTimeUtc);
+        return recordBytes.toByteArray();
+    }
+
+    private static Record decode(byte[] bytes) throws IOException {
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (record.readByte() != RECORD_VERSION) {
+            throw new EOFException("Unsupported metadata index record version.");
+        }
+        byte type = record.readByte();
+        long syncPointId = record.readLong();
+        long id = record.readLong();
+        long parentId = record.readLong();
+        long length = record.readLong();
+        String name = readString(record);
+        String versionId = readString(record);
+        String hash = readString(record);
+        String virtualPath = readString(record);
+        String creationTimeUtc = readString(record);
+        String lastWriteTimeUtc = readString(record);
+        return new Record(type, syncPointId, id, parentId, name, versionId, hash, virtualPath, length,
+                creationTimeUtc, lastWriteTimeUtc);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * A log record. The meaning of id and parentId depends on the type:
+     * root Folder ID for a SyncPoint, Folder ID and parent Folder ID for a Folder,
+     * File ID and Folder ID for a File.
+     */
+    private static class Record {
+        final byte type;
+        final long syncPointId;
+        final long id;
+        final long parentId;
+        final String name;
+        final String versionId;
+        final String hash;
+        final String virtualPath;
+        final long length;
+        final String creationTimeUtc;
+        final String lastWriteTimeUtc;
+
+        Record(byte type, long syncPointId, long id, long parentId, String name, String versionId, String hash,
+               String virtualPath, long length, String creationTimeUtc, String lastWriteTimeUtc) {
+            this.type = type;
+            this.syncPointId = syncPointId;
+            this.id = id;
+            this.parentId = parentId;
+            this.name = name;
+            this.versionId = versionId;
+            this.hash = hash;
+            this.virtualPath = virtualPath;
+            this.length = length;
+            this.creationTimeUtc = creationTimeUtc;
+            this.lastWriteTimeUtc = lastWriteTimeUtc;
+        }
+    }
+
+    private static class SyncPointEntry {
+        final Map<Long, FolderEntry> folders = new HashMap<>();
+        final Map<Long, FileEntry> files = new HashMap<>();
+        final Map<Long, FolderEntry> placeholders = new HashMap<>();
+        long rootFolderId;
+        String name;
+
+        /**
+         * Returns a Folder entry, creating a placeholder for a Folder whose record has not been read yet,
+         * e.g. the parent of a root Folder.
+         */
+        FolderEntry getFolder(long folderId) {
+            FolderEntry folder = folders.get(folderId);
+            return folder != null ? folder : placeholders.computeIfAbsent(folderId, FolderEntry::new);
+        }
+    }
+
+    private static class FolderEntry {
+        final long folderId;
+        final Set<Long> subfolderIds = new LinkedHashSet<>();
+        final Set<Long> fileIds = new LinkedHashSet<>();
+        long parentFolderId;
+        String name;
+        String virtualPath;
+
+        FolderEntry(long folderId) {
+            this.folderId = folderId;
+        }
+
+        Folder toFolder(long syncPointId) {
+            Folder folder = new Folder();
+            folder.SyncpointId = syncPointId;
+            folder.FolderId = folderId;
+            folder.Name = name;
+            folder.VirtualPath = virtualPath;
+            return folder;
+        }
+    }
+
+    private static class FileEntry {
+        final long fileId;
+        long folderId;
+        String filename;
+        String latestVersionId;
+        String hash;
+        long length;
+        String creationTimeUtc;
+        String lastWriteTimeUtc;
+
+        FileEntry(long fileId) {
+            this.fileId = fileId;
+        }
+
+        File toFile(long syncPointId, String folderPath) {
+            File file = new File();
+            file.SyncpointId = (int) syncPointId;
+            file.FileId = fileId;
+            file.FolderId = folderId;
+            file.Filename = filename;
+            file.VirtualPath = folderPath;
+            file.LatestVersionId = latestVersionId;
+            file.Hash = hash;
+            file.Length = length;
+            file.CreationTimeUtc = creationTimeUtc;
+            file.LastWriteTimeUtc = lastWriteTimeUtc;
+            return file;
+        }
+    }
+}
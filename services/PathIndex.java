@@ -0,0 +1,532 @@
+package services;
+
+import entities.File;
+import entities.Folder;
+import entities.SyncPoint;
+import util.ConfigurationHelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory index resolving virtual paths such as {@code /Projects/2026/report.pdf} to Folder and File IDs.
+ * <p>
+ * Paths are kept in a tree with one node per path component, so a lookup takes one step per component.
+ * The index is filled lazily: every Folder listing returned by {@link FolderService#getFolder(long, long, boolean)}
+ * adds the subfolders and Files of the Folder, and a lookup that reaches a Folder whose contents are not known
+ * lists that Folder, so a path is only resolved remotely the first time. Walks over whole SyncPoints, such as
+ * crawls, downloads and exports, list Folders without adding them. A Folder listing also tells which names do not exist, and paths
+ * that were not found are remembered for a while, so repeated lookups of missing paths do not reach
+ * the server either. Creating and deleting Folders and uploading Files through the services updates
+ * the index; changes made by other clients are only seen once the affected Folder is listed again.
+ * <p>
+ * Path separators may be slashes or backslashes, and names are compared ignoring case.
+ * When the index holds more than its maximum number of paths, the SyncPoints used longest ago are
+ * dropped, and then the subfolders of the SyncPoint being added to, until it is back within the limit.
+ */
+public class PathIndex {
+
+    private static final long UNKNOWN_ID = -1;
+
+    private static PathIndex defaultIndex = null;
+    private static boolean defaultIndexResolved = false;
+
+    private final int maxEntries;
+    private final long negativeNanos;
+    // in access order, so that the SyncPoint used longest ago comes first
+    private final Map<Long, SyncPointEntry> syncPoints = new LinkedHashMap<>(16, 0.75f, true);
+    private int entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param maxEntries
+     *            the maximum number of paths kept
+     * @param negativeSeconds
+     *            the number of seconds a path is known not to exist after it was not found
+     */
+    public PathIndex(int maxEntries, int negativeSeconds) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.negativeNanos = TimeUnit.SECONDS.toNanos(Math.max(0, negativeSeconds));
+    }
+
+    /**
+     * Returns the index configured with the pathIndexMaxEntries and pathIndexNegativeSeconds settings.
+     *
+     * @return the shared index or null if the path index is disabled
+     */
+    public static synchronized PathIndex getDefault() {
+        if (!defaultIndexResolved) {
+            defaultIndexResolved = true;
+            int maxEntries = ConfigurationHelper.getPathIndexMaxEntries();
+            if (maxEntries > 0) {
+                defaultIndex = new PathIndex(maxEntries, ConfigurationHelper.getPathIndexNegativeSeconds());
+            }
+        }
+        return defaultIndex;
+    }
+
+    /**
+     * Resolves the path of a Folder.
+     *
+     * @param syncPoint
+     *            the {@link SyncPoint} with at least Id and RootFolderId
+     * @param path
+     *            the virtual path of the Folder, relative to the SyncPoint root
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return the Folder ID or null if there is no Folder at the path
+     */
+    public Long getFolderId(SyncPoint syncPoint, String path, boolean suppressErrors) {
+        return getFolderId(syncPoint.Id, syncPoint.RootFolderId, path, suppressErrors);
+    }
+
+    /**
+     * Resolves the path of a Folder, listing the Folders along the path that are not indexed yet.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param rootFolderId
+     *            the ID of the SyncPoint root Folder
+     * @param path
+     *            the virtual path of the Folder, relative to the SyncPoint root
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return the Folder ID or null if there is no Folder at the path
+     */
+    public Long getFolderId(long syncPointId, long rootFolderId, String path, boolean suppressErrors) {
+        long[] entry = resolve(syncPointId, rootFolderId, path, suppressErrors);
+        return entry == null || entry[1] != 0 ? null : entry[0];
+    }
+
+    /**
+     * Resolves the path of a File.
+     *
+     * @param syncPoint
+     *            the {@link SyncPoint} with at least Id and RootFolderId
+     * @param path
+     *            the virtual path of the File, relative to the SyncPoint root
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return the File ID or null if there is no File at the path
+     */
+    public Long getFileId(SyncPoint syncPoint, String path, boolean suppressErrors) {
+        return getFileId(syncPoint.Id, syncPoint.RootFolderId, path, suppressErrors);
+    }
+
+    /**
+     * Resolves the path of a File, listing the Folders along the path that are not indexed yet.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param rootFolderId
+     *            the ID of the SyncPoint root Folder
+     * @param path
+     *            the virtual path of the File, relative to the SyncPoint root
+     * @param suppressErrors
+     *            indicates whether errors should be suppressed
+     * @return the File ID or null if there is no File at the path
+     */
+    public Long getFileId(long syncPointId, long rootFolderId, String path, boolean suppressErrors) {
+        long[] entry = resolve(syncPointId, rootFolderId, path, suppressErrors);
+        return entry == null || entry[1] == 0 ? null : entry[0];
+    }
+
+    /**
+     * Adds the subfolders and Files of a Folder listing. Entries of the Folder that are missing
+     * from the listing are removed. Listings of Folders whose path is not known are ignored,
+     * except for SyncPoint root Folders.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param folder
+     *            the {@link Folder} listing
+     */
+    public synchronized void addFolder(long syncPointId, Folder folder) {
+        SyncPointEntry syncPoint = getSyncPoint(syncPointId);
+        Node node = syncPoint.folders.get(folder.FolderId);
+        if (node == null) {
+            if (!isRootPath(folder.VirtualPath)) {
+                return;
+            }
+            node = syncPoint.root;
+            resetRoot(syncPoint, folder.FolderId);
+        }
+
+        Map<String, Node> children = new HashMap<>();
+        if (folder.Folders != null) {
+            for (Folder subfolder : folder.Folders) {
+                addChild(syncPoint, node, children, subfolder.Name, subfolder.FolderId, false);
+            }
+        }
+        if (folder.Files != null) {
+            for (File file : folder.Files) {
+                addChild(syncPoint, node, children, file.Filename, file.FileId, true);
+            }
+        }
+        if (node.children != null) {
+            for (Node child : node.children.values()) {
+                if (children.get(child.key) != child) {
+                    forget(syncPoint, child, null);
+                }
+            }
+        }
+        node.children = children;
+        node.listedNanos = System.nanoTime();
+        trim(syncPoint);
+    }
+
+    /**
+     * Adds Folders created in a Folder, e.g. as returned by
+     * {@link FolderService#createFolders(long, long, Folder[])}.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param parentFolderId
+     *            the parent Folder ID
+     * @param folders
+     *            the created {@link Folder}s
+     */
+    public synchronized void addSubfolders(long syncPointId, long parentFolderId, Folder[] folders) {
+        SyncPointEntry syncPoint = syncPoints.get(syncPointId);
+        Node parent = syncPoint == null ? null : syncPoint.folders.get(parentFolderId);
+        if (parent == null) {
+            return;
+        }
+        if (parent.children == null) {
+            parent.children = new HashMap<>();
+        }
+        for (Folder folder : folders) {
+            if (folder.Name != null) {
+                Node previous = parent.children.get(toKey(folder.Name));
+                if (previous != null && previous.id != folder.FolderId) {
+                    remove(syncPoint, previous);
+                }
+                addChild(syncPoint, parent, parent.children, folder.Name, folder.FolderId, false);
+            }
+        }
+        trim(syncPoint);
+    }
+
+    /**
+     * Forgets a Folder and everything below it, e.g. after it was deleted.
+     * The next lookup of its path lists its parent Folder again.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param folderId
+     *            the Folder ID
+     */
+    public synchronized void invalidateFolder(long syncPointId, long folderId) {
+        SyncPointEntry syncPoint = syncPoints.get(syncPointId);
+        Node node = syncPoint == null ? null : syncPoint.folders.get(folderId);
+        if (node == null || node.parent == null) {
+            return;
+        }
+        // the deletion may have failed, so the parent listing no longer tells whether the name exists
+        node.parent.listedNanos = 0;
+        remove(syncPoint, node);
+    }
+
+    /**
+     * Forgets what is known about a path, e.g. after a File was uploaded to it.
+     * The next lookup of the path lists its parent Folder again.
+     *
+     * @param syncPointId
+     *            the SyncPoint ID
+     * @param path
+     *            the virtual path, relative to the SyncPoint root
+     */
+    public synchronized void invalidate(long syncPointId, String path) {
+        SyncPointEntry syncPoint = syncPoints.get(syncPointId);
+        if (syncPoint == null) {
+            return;
+        }
+        Node node = syncPoint.root;
+        List<String> keys = split(path);
+        for (int i = 0; i < keys.size() && node != null; i++) {
+            if (i == keys.size() - 1) {
+                // the parent listing no longer tells whether the name exists
+                node.listedNanos = 0;
+            }
+            Node child = node.children == null ? null : node.children.get(keys.get(i));
+            if (child != null && i == keys.size() - 1) {
+                remove(syncPoint, child);
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public synchronized void clear() {
+        syncPoints.clear();
+        entries = 0;
+    }
+
+    /**
+     * @return the number of paths in the index
+     */
+    public synchronized int size() {
+        return entries;
+    }
+
+    /**
+     * @return the number of path lookups answered without listing a Folder
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of path lookups that listed at least one Folder
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Walks a path down from the SyncPoint root, listing the Folders whose contents are not known.
+     *
+     * @return the ID and 1 for a File or 0 for a Folder, or null if the path does not exist
+     */
+    private long[] resolve(long syncPointId, long rootFolderId, String path, boolean suppressErrors) {
+        List<String> keys = split(path);
+        boolean listed = false;
+        while (true) {
+            long listFolderId;
+            synchronized (this) {
+                SyncPointEntry syncPoint = getSyncPoint(syncPointId);
+                if (syncPoint.root.id != rootFolderId) {
+                    resetRoot(syncPoint, rootFolderId);
+                }
+                Node node = syncPoint.root;
+                int depth = 0;
+                long now = System.nanoTime();
+                while (depth < keys.size()) {
+                    if (node.file) {
+                        return found(null, listed);
+                    }
+                    Node child = node.children == null ? null : node.children.get(keys.get(depth));
+                    if (child == null && node.listedNanos != 0 && now - node.listedNanos < negativeNanos) {
+                        return found(null, listed);
+                    }
+                    if (child == null || child.id == UNKNOWN_ID) {
+                        break;
+                    }
+                    node = child;
+                    depth++;
+                }
+                if (depth == keys.size()) {
+                    return found(new long[] { node.id, node.file ? 1 : 0 }, listed);
+                }
+                listFolderId = node.id;
+            }
+
+            // FolderService adds the listing to the default index
+            Folder folder = FolderService.getFolder(syncPointId, listFolderId, suppressErrors);
+            if (folder == null) {
+                return found(null, true);
+            }
+            listed = true;
+            synchronized (this) {
+                if (this != getDefault()) {
+                    addFolder(syncPointId, folder);
+                }
+                Node node = getSyncPoint(syncPointId).folders.get(listFolderId);
+                if (node == null || node.children == null || !node.children.containsKey(keys.get(depthOf(node)))) {
+                    return found(null, true);
+                }
+            }
+        }
+    }
+
+    private synchronized long[] found(long[] entry, boolean listed) {
+        if (listed) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    private SyncPointEntry getSyncPoint(long syncPointId) {
+        SyncPointEntry syncPoint = syncPoints.get(syncPointId);
+        if (syncPoint == null) {
+            syncPoint = new SyncPointEntry();
+            syncPoints.put(syncPointId, syncPoint);
+            // the SyncPoint root
+            entries++;
+        }
+        return syncPoint;
+    }
+
+    private void addChild(SyncPointEntry syncPoint, Node parent, Map<String, Node> children, String name, long id,
+                          boolean file) {
+        if (name == null) {
+            return;
+        }
+        String key = toKey(name);
+        Node child = parent.children == null ? null : parent.children.get(key);
+        if (child == null || child.file != file
+                || (child.id != UNKNOWN_ID && child.id != id)) {
+            child = new Node(parent, key);
+            entries++;
+            syncPoint.entries++;
+        }
+        children.put(key, child);
+        setId(syncPoint, child, id, file);
+    }
+
+    /**
+     * Sets the root Folder ID of a SyncPoint, forgetting the paths indexed below another root Folder.
+     */
+    private void resetRoot(SyncPointEntry syncPoint, long rootFolderId) {
+        if (syncPoint.root.children != null) {
+            for (Node child : new ArrayList<>(syncPoint.root.children.values())) {
+                remove(syncPoint, child);
+            }
+        }
+        syncPoint.root.listedNanos = 0;
+        setId(syncPoint, syncPoint.root, rootFolderId, false);
+    }
+
+    private void setId(SyncPointEntry syncPoint, Node node, long id, boolean file) {
+        if (!node.file && node.id != UNKNOWN_ID && syncPoint.folders.get(node.id) == node) {
+            syncPoint.folders.remove(node.id);
+        }
+        node.id = id;
+        node.file = file;
+        if (!file) {
+            Node previous = syncPoint.folders.put(id, node);
+            if (previous != null && previous != node && previous.parent != null
+                    && previous.parent.children != null && previous.parent.children.get(previous.key) == previous) {
+                // the Folder was moved: forget its old path
+                previous.parent.children.remove(previous.key);
+                forget(syncPoint, previous, node);
+            }
+        }
+    }
+
+    /**
+     * Detaches a node from its parent and forgets the Folders below it.
+     */
+    private void remove(SyncPointEntry syncPoint, Node node) {
+        if (node.parent != null && node.parent.children != null && node.parent.children.get(node.key) == node) {
+            node.parent.children.remove(node.key);
+        }
+        forget(syncPoint, node, null);
+    }
+
+    private void forget(SyncPointEntry syncPoint, Node node, Node keep) {
+        entries--;
+        syncPoint.entries--;
+        if (!node.file && node.id != UNKNOWN_ID && syncPoint.folders.get(node.id) == node) {
+            syncPoint.folders.remove(node.id);
+        }
+        if (node.children != null) {
+            for (Node child : node.children.values()) {
+                if (child != keep) {
+                    forget(syncPoint, child, keep);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the SyncPoints used longest ago while the index holds too many paths, and then the
+     * subfolders of the SyncPoint being added to, so that a large SyncPoint does not take the others along.
+     */
+    private void trim(SyncPointEntry current) {
+        for (Iterator<SyncPointEntry> iterator = syncPoints.values().iterator();
+             entries > maxEntries && iterator.hasNext();) {
+            SyncPointEntry syncPoint = iterator.next();
+            if (syncPoint != current) {
+                iterator.remove();
+                entries -= syncPoint.entries + 1;
+            }
+        }
+        if (entries > maxEntries && current.root.children != null) {
+            for (Node child : new ArrayList<>(current.root.children.values())) {
+                remove(current, child);
+                if (entries <= maxEntries) {
+                    break;
+                }
+            }
+            current.root.listedNanos = 0;
+        }
+    }
+
+    private static int depthOf(Node node) {
+        int depth = 0;
+        for (Node parent = node.parent; parent != null; parent = parent.parent) {
+            depth++;
+        }
+        return depth;
+    }
+
+    private static boolean isRootPath(String path) {
+        return path != null && split(path).isEmpty();
+    }
+
+    /**
+     * Splits a path into lookup keys, accepting slashes and backslashes as separators.
+     */
+    private static List<String> split(String path) {
+        List<String> keys = new ArrayList<>();
+        if (path == null) {
+            return keys;
+        }
+        for (String name : path.replace('\\', '/').split("/")) {
+            if (name.isEmpty() || name.equals(".")) {
+                continue;
+            }
+            if (name.equals("..")) {
+                if (!keys.isEmpty()) {
+                    keys.remove(keys.size() - 1);
+                }
+            } else {
+                keys.add(toKey(name));
+            }
+        }
+        return keys;
+    }
+
+    private static String toKey(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static class SyncPointEntry {
+        final Node root = new Node(null, "");
+        final Map<Long, Node> folders = new HashMap<>();
+        // the number of paths below the root
+        int entries;
+    }
+
+    /**
+     * A path component: a Folder or a File.
+     */
+    private static class Node {
+        final Node parent;
+        final String key;
+        long id = UNKNOWN_ID;
+        boolean file;
+        // when the children were last completed from a listing, 0 if they are not complete
+        long listedNanos;
+        Map<String, Node> children;
+
+        Node(Node parent, String key) {
+            this.parent = parent;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package services;
+
+import util.BandwidthThrottle;
+import util.ExecutionLane;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A read-only channel over the contents of a remote File.
+ * <p>
+ * The File is read in fixed-size blocks fetched with Range requests, so reading a few bytes
+ * anywhere in a large File only downloads the blocks that contain them. Recently read blocks
+ * are kept in a small LRU cache, and when the File is read sequentially the next blocks
+ * are fetched in the background before they are needed. Blocks being fetched ahead count
+ * toward the cache size, and those a seek has left behind are cancelled.
+ */
+class RemoteFileChannel implements SeekableByteChannel {
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int MAX_CACHED_BLOCKS = 16;
+    private static final int READ_AHEAD_BLOCKS = 2;
+
+    private final String url;
+    private final long size;
+    private final Map<Long, Future<byte[]>> pendingBlocks = new HashMap<>();
+    private final Map<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() + pendingBlocks.size() > MAX_CACHED_BLOCKS;
+        }
+    };
+    private final ExecutorService readAhead;
+    private long position;
+    private long lastBlockIndex = -1;
+    private boolean open = true;
+
+    /**
+     * @param url
+     *            the download URL of the File version
+     * @param size
+     *            the File length
+     */
+    RemoteFileChannel(String url, long size) {
+        this.url = url;
+        this.size = size;
+        this.readAhead = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "remote-file-read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            long blockIndex = position / BLOCK_SIZE;
+            byte[] block = getBlock(blockIndex);
+            int offset = (int) (position - blockIndex * BLOCK_SIZE);
+            int length = Math.min(dst.remaining(), block.length - offset);
+            dst.put(block, offset, length);
+            position += length;
+            total += length;
+        }
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("The position must not be negative.");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (open) {
+            open = false;
+            readAhead.shutdownNow();
+            blocks.clear();
+            for (Future<byte[]> pendingBlock : pendingBlocks.values()) {
+                pendingBlock.cancel(true);
+            }
+            pendingBlocks.clear();
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private byte[] getBlock(long blockIndex) throws IOException {
+        byte[] block = blocks.get(blockIndex);
+        if (block == null) {
+            Future<byte[]> pendingBlock = pendingBlocks.remove(blockIndex);
+            block = pendingBlock != null ? await(pendingBlock) : fetchBlock(blockIndex);
+            blocks.put(blockIndex, block);
+        }
+        cancelReadAheadOutside(blockIndex);
+
+        boolean sequential = blockIndex == lastBlockIndex + 1;
+        lastBlockIndex = blockIndex;
+        if (sequential) {
+            scheduleReadAhead(blockIndex);
+        }
+        return block;
+    }
+
+    /**
+     * Cancels the blocks fetched ahead that are not among the next ones, e.g. after a seek,
+     * so that random access does not leave blocks behind that are never read.
+     */
+    private void cancelReadAheadOutside(long blockIndex) {
+        for (Iterator<Map.Entry<Long, Future<byte[]>>> iterator = pendingBlocks.entrySet().iterator();
+             iterator.hasNext();) {
+            Map.Entry<Long, Future<byte[]>> pendingBlock = iterator.next();
+            long pendingIndex = pendingBlock.getKey();
+            if (pendingIndex <= blockIndex || pendingIndex > blockIndex + READ_AHEAD_BLOCKS) {
+                pendingBlock.getValue().cancel(true);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void scheduleReadAhead(long blockIndex) {
+        long blockCount = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        for (long next = blockIndex + 1; next <= blockIndex + READ_AHEAD_BLOCKS && next < blockCount; next++) {
+            if (!blocks.containsKey(next) && !pendingBlocks.containsKey(next)) {
+                long nextBlockIndex = next;
+                pendingBlocks.put(next, readAhead.submit(() -> fetchBlock(nextBlockIndex)));
+            }
+        }
+        // make room for the blocks fetched ahead, least recently read first
+        Iterator<Long> eldest = blocks.keySet().iterator();
+        while (blocks.size() + pendingBlocks.size() > MAX_CACHED_BLOCKS && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    private byte[] await(Future<byte[]> pendingBlock) throws IOException {
+        try {
+            return pendingBlock.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a block of the file.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private byte[] fetchBlock(long blockIndex) throws IOException {
+        long start = blockIndex * BLOCK_SIZE;
+        long end = Math.min(start + BLOCK_SIZE, size) - 1;
+        byte[] block = new byte[(int) (end - start + 1)];
+        int offset = 0;
+        ExecutionLane.TRANSFER.enter();
+        try {
+            HttpURLConnection request = FileService.openRangeDownload(url, start, end, false);
+            if (request == null) {
+                throw new IOException(String.format("Could not download bytes %d-%d of %s", start, end, url));
+            }
+            try (InputStream in = request.getInputStream()) {
+                int read;
+                while (offset < block.length && (read = in.read(block, offset, block.length - offset)) != -1) {
+                    BandwidthThrottle.consume(url, read);
+                    offset += read;
+                }
+            }
+        } finally {
+            ExecutionLane.TRANSFER.exit();
+        }
+        if (offset != block.length) {
+            throw new IOException(String.format("Received %d bytes instead of %d for bytes %d-%d of %s",
+                    offset, block.length, start, end, url));
+        }
+        return block;
+    }
+}
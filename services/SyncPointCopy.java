@@ -0,0 +1,249 @@
+package services;
+
+import entities.File;
+import entities.Folder;
+import entities.FolderStatus;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies a Folder tree from one SyncPoint to another, e.g. to migrate it to another storage endpoint.
+ * <p>
+ * The target folders are created while the source tree is walked, and every File is piped from its
+ * source download straight into its target upload on a {@link TransferScheduler}, so no contents
+ * touch the local disk. Each copied File is recorded in an optional checkpoint file; a copy that is
+ * run again with the same checkpoint skips the Files it already copied. Files that already exist
+ * in the target folder with the same length and hash are skipped as well.
+ */
+class SyncPointCopy {
+
+    private static final int QUEUED_FILES_PER_WORKER = 64;
+
+    private final long sourceSyncPointId;
+    private final long targetSyncPointId;
+    private final boolean suppressErrors;
+    private final TransferScheduler scheduler;
+    private final Set<String> copiedVersions = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger copiedFiles = new AtomicInteger();
+    private final AtomicInteger skippedFiles = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private Writer checkpoint;
+
+    SyncPointCopy(long sourceSyncPointId, long targetSyncPointId, int concurrency, boolean suppressErrors) {
+        this.sourceSyncPointId = sourceSyncPointId;
+        this.targetSyncPointId = targetSyncPointId;
+        this.suppressErrors = suppressErrors;
+        int workers = Math.max(1, concurrency);
+        this.scheduler = new TransferScheduler(workers, workers * QUEUED_FILES_PER_WORKER);
+    }
+
+    /**
+     * Copies the contents of a source Folder and all its subfolders into a target Folder.
+     *
+     * @param sourceFolderId
+     *            the source Folder ID
+     * @param targetFolderId
+     *            the target Folder ID
+     * @param checkpointFile
+     *            the file recording the copied Files, or null to copy without a checkpoint
+     * @return true if every Folder was created and every File was copied
+     */
+    boolean execute(long sourceFolderId, long targetFolderId, Path checkpointFile) throws InterruptedException {
+        String targetStorageEndpointUrl = FileService.getDownloadPlan()
+                .getStorageEndpointUrl(targetSyncPointId, suppressErrors);
+        if (targetStorageEndpointUrl == null) {
+            return false;
+        }
+        if (checkpointFile != null && !openCheckpoint(checkpointFile)) {
+            return false;
+        }
+
+        try {
+            Deque<long[]> folders = new ArrayDeque<>();
+            folders.push(new long[] { sourceFolderId, targetFolderId });
+            while (!folders.isEmpty()) {
+                long[] pair = folders.pop();
+                copyFolder(pair[0], pair[1], targetStorageEndpointUrl, folders);
+            }
+            scheduler.shutdown(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            scheduler.shutdownNow();
+            closeCheckpoint();
+        }
+
+        System.out.println(String.format("Copied %d files to SyncPoint %d, %d were already copied, %d failures.",
+                copiedFiles.get(), targetSyncPointId, skippedFiles.get(), failures.get()));
+        scheduler.printStatistics();
+        return failures.get() == 0;
+    }
+
+    /**
+     * Creates the missing subfolders of a target Folder, queues the Files to copy into it
+     * and pushes the subfolder pairs to walk next.
+     */
+    private void copyFolder(long sourceFolderId, long targetFolderId, String targetStorageEndpointUrl,
+                            Deque<long[]> folders) throws InterruptedException {
+        Folder source = FolderService.listFolder(sourceSyncPointId, sourceFolderId, suppressErrors);
+        Folder target = FolderService.listFolder(targetSyncPointId, targetFolderId, suppressErrors);
+        if (source == null || target == null) {
+            failures.incrementAndGet();
+            return;
+        }
+
+        if (source.Folders != null && source.Folders.length > 0) {
+            // names are compared ignoring case, as the server does
+            Map<String, Folder> targetFolders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            if (target.Folders != null) {
+                for (Folder folder : target.Folders) {
+                    targetFolders.put(folder.Name, folder);
+                }
+            }
+            createMissingFolders(source.Folders, target.FolderId, targetFolders);
+            for (Folder subfolder : source.Folders) {
+                Folder targetSubfolder = targetFolders.get(subfolder.Name);
+                if (targetSubfolder != null) {
+                    folders.push(new long[] { subfolder.FolderId, targetSubfolder.FolderId });
+                }
+            }
+        }
+
+        if (source.Files != null) {
+            Map<String, File> targetFiles = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            if (target.Files != null) {
+                for (File file : target.Files) {
+                    targetFiles.put(file.Filename, file);
+                }
+            }
+            for (File file : source.Files) {
+                if (isCopied(file, targetFiles.get(file.Filename))) {
+                    skippedFiles.incrementAndGet();
+                } else {
+                    scheduler.submit(file, () -> copyFile(file, targetStorageEndpointUrl, target.VirtualPath));
+                }
+            }
+        }
+    }
+
+    private void createMissingFolders(Folder[] sourceFolders, long targetFolderId, Map<String, Folder> targetFolders) {
+        List<Folder> missing = new ArrayList<>();
+        for (Folder subfolder : sourceFolders) {
+            if (!targetFolders.containsKey(subfolder.Name)) {
+                Folder folder = new Folder();
+                folder.Name = subfolder.Name;
+                folder.Status = FolderStatus.Added;
+                missing.add(folder);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        Folder[] created = FolderService.createFolders(targetSyncPointId, targetFolderId,
+                missing.toArray(new Folder[0]));
+        if (created != null) {
+            for (Folder folder : created) {
+                targetFolders.put(folder.Name, folder);
+            }
+        }
+        for (Folder folder : missing) {
+            if (!targetFolders.containsKey(folder.Name)) {
+                if (!suppressErrors) {
+                    System.err.println(String.format("Could not create folder '%s' in SyncPoint %d",
+                            folder.Name, targetSyncPointId));
+                }
+                failures.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean isCopied(File file, File targetFile) {
+        if (copiedVersions.contains(getCheckpointKey(file))) {
+            return true;
+        }
+        return targetFile != null
+                && targetFile.Length == file.Length
+                && file.Hash != null
+                && file.Hash.equalsIgnoreCase(targetFile.Hash);
+    }
+
+    private boolean copyFile(File file, String targetStorageEndpointUrl, String targetFolderPath) {
+        if (FileService.copyFile(sourceSyncPointId, file, targetStorageEndpointUrl, targetFolderPath,
+                targetSyncPointId, suppressErrors)) {
+            copiedFiles.incrementAndGet();
+            recordCheckpoint(file);
+            return true;
+        }
+        if (!suppressErrors) {
+            System.err.println(String.format("Could not copy '%s%s'", targetFolderPath, file.Filename));
+        }
+        failures.incrementAndGet();
+        return false;
+    }
+
+    private boolean openCheckpoint(Path checkpointFile) {
+        try {
+            if (Files.exists(checkpointFile)) {
+                copiedVersions.addAll(Files.readAllLines(checkpointFile, StandardCharsets.UTF_8));
+            }
+            checkpoint = Files.newBufferedWriter(checkpointFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            return true;
+        } catch (IOException e) {
+            if (!suppressErrors) {
+                System.err.println(String.format("Could not open checkpoint file '%s'", checkpointFile));
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    private synchronized void recordCheckpoint(File file) {
+        String key = getCheckpointKey(file);
+        copiedVersions.add(key);
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            checkpoint.write(key);
+            checkpoint.write(System.lineSeparator());
+            checkpoint.flush();
+        } catch (IOException e) {
+            if (!suppressErrors) {
+                System.err.println("Could not update the checkpoint file.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private synchronized void closeCheckpoint() {
+        if (checkpoint != null) {
+            try {
+                checkpoint.close();
+            } catch (IOException ignored) {
+            }
+            checkpoint = null;
+        }
+    }
+
+    /**
+     * Identifies a copied File version in the checkpoint file.
+     */
+    private static String getCheckpointKey(File file) {
+        return file.FileId + " " + file.LatestVersionId;
+    }
+}
@@ -0,0 +1,264 @@
+package services;
+
+import entities.File;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs File transfers on a fixed number of threads in the order of the File SyncPriority.
+ * <p>
+ * Every queued transfer gets a due time: the time it was queued, moved earlier by its priority
+ * and later by its size, and the transfer that is due first runs next. A File with a higher
+ * SyncPriority therefore overtakes the ones queued up to {@link #PRIORITY_STEP_SECONDS} seconds
+ * per priority level before it, and small Files overtake large ones queued shortly before them.
+ * Aging is bounded by these offsets rather than strict: a waiting transfer can still be overtaken
+ * by a transfer queued later, but only within the priority difference times
+ * {@link #PRIORITY_STEP_SECONDS} seconds plus the size delay, so it cannot starve.
+ * <p>
+ * The number of queued transfers is bounded; submitting waits while the queue is full.
+ * Throughput is recorded per priority and can be read with {@link #getStatistics()}.
+ */
+public class TransferScheduler {
+
+    /**
+     * Seconds a transfer is moved ahead for each level of SyncPriority.
+     */
+    public static final long PRIORITY_STEP_SECONDS = 60;
+
+    private static final long PRIORITY_STEP_NANOS = TimeUnit.SECONDS.toNanos(PRIORITY_STEP_SECONDS);
+    private static final long SMALL_FILE_SIZE = 1024 * 1024;
+    private static final long SIZE_STEP_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore queueSlots;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Byte, PriorityStatistics> statistics = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param concurrency
+     *            the number of transfers run at the same time
+     * @param maxQueued
+     *            the number of transfers that may wait to be run
+     */
+    public TransferScheduler(int concurrency, int maxQueued) {
+        int threads = Math.max(1, concurrency);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "transfer-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.queueSlots = new Semaphore(threads + Math.max(1, maxQueued));
+    }
+
+    /**
+     * Queues the transfer of a File, waiting while the queue is full.
+     *
+     * @param file
+     *            the {@link File} info with at least SyncPriority and Length
+     * @param transfer
+     *            transfers the File and returns true on success
+     * @return the result of the transfer
+     */
+    public Future<Boolean> submit(File file, Callable<Boolean> transfer) throws InterruptedException {
+        return submit(file.SyncPriority, file.Length, transfer);
+    }
+
+    /**
+     * Queues a transfer, waiting while the queue is full.
+     *
+     * @param priority
+     *            the SyncPriority, higher values are transferred first
+     * @param length
+     *            the number of bytes to transfer
+     * @param transfer
+     *            runs the transfer and returns true on success
+     * @return the result of the transfer
+     */
+    public Future<Boolean> submit(byte priority, long length, Callable<Boolean> transfer)
+            throws InterruptedException {
+        queueSlots.acquire();
+        Job job = new Job(priority, length, transfer);
+        try {
+            executor.execute(job);
+        } catch (RuntimeException e) {
+            queueSlots.release();
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * Waits for the queued transfers to finish and stops the threads.
+     *
+     * @param timeout
+     *            the maximum time to wait
+     * @param unit
+     *            the time unit of the timeout
+     * @return true if all transfers finished in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Cancels the queued transfers and interrupts the running ones.
+     */
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the statistics of every priority that had transfers, by priority
+     */
+    public Map<Byte, PriorityStatistics> getStatistics() {
+        return new TreeMap<>(statistics);
+    }
+
+    /**
+     * Prints the statistics of every priority.
+     */
+    public void printStatistics() {
+        for (Map.Entry<Byte, PriorityStatistics> entry : getStatistics().entrySet()) {
+            System.out.println(String.format("Priority %d: %s", entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private static long getDueTime(byte priority, long length, long queuedNanos) {
+        long due = queuedNanos - priority * PRIORITY_STEP_NANOS;
+        // every doubling beyond the small file size delays the transfer a bit more
+        if (length > SMALL_FILE_SIZE) {
+            int doublings = 63 - Long.numberOfLeadingZeros(length / SMALL_FILE_SIZE);
+            due += (doublings + 1) * SIZE_STEP_NANOS;
+        }
+        return due;
+    }
+
+    /**
+     * Throughput of the transfers of one priority.
+     */
+    public static class PriorityStatistics {
+        private final LongAdder transfers = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder transferNanos = new LongAdder();
+
+        /**
+         * @return the number of finished transfers
+         */
+        public long getTransfers() {
+            return transfers.sum();
+        }
+
+        /**
+         * @return the number of failed transfers
+         */
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /**
+         * @return the number of bytes of the successful transfers
+         */
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * @return the average time a transfer waited in the queue in milliseconds
+         */
+        public long getAverageWaitMillis() {
+            long count = transfers.sum();
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitNanos.sum() / count);
+        }
+
+        /**
+         * @return the average transfer rate of the successful transfers in bytes per second
+         */
+        public long getBytesPerSecond() {
+            long nanos = transferNanos.sum();
+            return nanos == 0 ? 0 : (long) (bytes.sum() * (double) TimeUnit.SECONDS.toNanos(1) / nanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d transfers, %d failures, %d bytes, %d KB/s, %d ms average wait",
+                    getTransfers(), getFailures(), getBytes(), getBytesPerSecond() / 1024, getAverageWaitMillis());
+        }
+    }
+
+    /**
+     * A queued transfer, ordered by its due time and then by the order it was queued in.
+     */
+    private class Job extends FutureTask<Boolean> implements Comparable<Job> {
+        private final byte priority;
+        private final long length;
+        private final long queuedNanos = System.nanoTime();
+        private final long dueTime;
+        private final long sequenceNumber = sequence.getAndIncrement();
+
+        Job(byte priority, long length, Callable<Boolean> transfer) {
+            super(transfer);
+            this.priority = priority;
+            this.length = length;
+            this.dueTime = getDueTime(priority, length, queuedNanos);
+        }
+
+        @Override
+        public void run() {
+            long startNanos = System.nanoTime();
+            try {
+                super.run();
+            } finally {
+                queueSlots.release();
+                record(startNanos);
+            }
+        }
+
+        private void record(long startNanos) {
+            PriorityStatistics priorityStatistics = statistics.computeIfAbsent(priority,
+                    key -> new PriorityStatistics());
+            priorityStatistics.transfers.increment();
+            priorityStatistics.waitNanos.add(startNanos - queuedNanos);
+            boolean succeeded;
+            try {
+                succeeded = isDone() && !isCancelled() && Boolean.TRUE.equals(get());
+            } catch (Exception e) {
+                succeeded = false;
+            }
+            if (succeeded) {
+                priorityStatistics.bytes.add(length);
+                priorityStatistics.transferNanos.add(System.nanoTime() - startNanos);
+            } else {
+                priorityStatistics.failures.increment();
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            // due times are nanoTime based, compare their difference to stay correct across overflow
+            long difference = dueTime - other.dueTime;
+            if (difference != 0) {
+                return difference < 0 ? -1 : 1;
+            }
+            return Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+    }
+}
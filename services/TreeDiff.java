@@ -0,0 +1,500 @@
+package services;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Compares two snapshots of a Folder tree and reports the Folders and Files that were added, removed,
+ * modified or moved.
+ * <p>
+ * Snapshots of the same SyncPoint are matched by Folder and File ID with a merge of the ID orders
+ * both {@link CompactTree}s keep, so two snapshots with millions of Files are compared in linear time
+ * without creating objects for unchanged entries. Snapshots without common IDs, such as a remote
+ * snapshot and a local directory, are matched by path instead, through a primitive hash map keyed by
+ * a 64-bit hash of the lower-case relative path. In both cases, a File that disappeared and a File that
+ * appeared with the same length and hash are reported as one move.
+ * <p>
+ * A File is modified if its length or hash changed; when either hash is not known, the last write
+ * times are compared to the second instead. A File that was both moved and modified is reported
+ * once for each.
+ */
+public class TreeDiff {
+
+    /**
+     * The kind of a change.
+     */
+    public enum Type {
+        ADDED, REMOVED, MODIFIED, MOVED
+    }
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final CompactTree oldTree;
+    private final CompactTree newTree;
+    private final Consumer<Change> changes;
+    private final Statistics statistics = new Statistics();
+
+    private TreeDiff(CompactTree oldTree, CompactTree newTree, Consumer<Change> changes) {
+        this.oldTree = oldTree;
+        this.newTree = newTree;
+        this.changes = changes;
+    }
+
+    /**
+     * Compares two snapshots of the same Folder tree by Folder and File ID.
+     *
+     * @param oldTree
+     *            the earlier snapshot
+     * @param newTree
+     *            the later snapshot
+     * @param changes
+     *            receives every change, Folders before Files
+     * @return the number of changes of each kind
+     */
+    public static Statistics compare(CompactTree oldTree, CompactTree newTree, Consumer<Change> changes) {
+        TreeDiff diff = new TreeDiff(oldTree, newTree, changes);
+        diff.compareFoldersById();
+        diff.compareFilesById();
+        return diff.finish();
+    }
+
+    /**
+     * Compares two snapshots by the paths of their Folders and Files below the root Folders,
+     * ignoring case. Renamed or moved Folders are reported as removed and added.
+     *
+     * @param oldTree
+     *            the earlier snapshot, or the reference snapshot
+     * @param newTree
+     *            the later snapshot, or the snapshot compared with it
+     * @param changes
+     *            receives every change, Folders before Files
+     * @return the number of changes of each kind
+     */
+    public static Statistics compareByPath(CompactTree oldTree, CompactTree newTree, Consumer<Change> changes) {
+        TreeDiff diff = new TreeDiff(oldTree, newTree, changes);
+        long[] oldFolderKeys = getFolderKeys(oldTree);
+        long[] newFolderKeys = getFolderKeys(newTree);
+        diff.compareFoldersByPath(oldFolderKeys, newFolderKeys);
+        diff.compareFilesByPath(oldFolderKeys, newFolderKeys);
+        return diff.finish();
+    }
+
+    /**
+     * Compares a remote snapshot with a local directory by path. Entries that only exist locally
+     * are reported as added, entries that only exist remotely as removed.
+     *
+     * @param remoteTree
+     *            the remote snapshot, e.g. from {@link CompactTree#crawl(long, long, boolean)}
+     * @param localRoot
+     *            the local directory corresponding to the root Folder of the snapshot
+     * @param computeHashes
+     *            indicates whether local files are hashed to detect changes of the same length
+     * @param changes
+     *            receives every change, Folders before Files
+     * @return the number of changes of each kind or null if the directory could not be read
+     */
+    public static Statistics compareWithLocal(CompactTree remoteTree, Path localRoot, boolean computeHashes,
+                                              Consumer<Change> changes) {
+        CompactTree localTree = CompactTree.scan(localRoot, computeHashes);
+        return localTree == null ? null : compareByPath(remoteTree, localTree, changes);
+    }
+
+    private void compareFoldersById() {
+        int oldCount = oldTree.getFolderCount();
+        int newCount = newTree.getFolderCount();
+        int i = 0;
+        int j = 0;
+        while (i < oldCount || j < newCount) {
+            int oldFolder = i < oldCount ? oldTree.getFolderByIdRank(i) : -1;
+            int newFolder = j < newCount ? newTree.getFolderByIdRank(j) : -1;
+            int order = oldFolder < 0 ? 1 : newFolder < 0 ? -1
+                    : Long.compare(oldTree.getFolderId(oldFolder), newTree.getFolderId(newFolder));
+            if (order < 0) {
+                emit(Type.REMOVED, true, oldFolder, -1);
+                i++;
+            } else if (order > 0) {
+                emit(Type.ADDED, true, -1, newFolder);
+                j++;
+            } else {
+                if (isFolderMoved(oldFolder, newFolder)) {
+                    emit(Type.MOVED, true, oldFolder, newFolder);
+                }
+                i++;
+                j++;
+            }
+        }
+    }
+
+    private boolean isFolderMoved(int oldFolder, int newFolder) {
+        int oldParent = oldTree.getParent(oldFolder);
+        int newParent = newTree.getParent(newFolder);
+        if (oldParent < 0 || newParent < 0) {
+            // the root Folders of the snapshots are not compared
+            return false;
+        }
+        return oldTree.getFolderId(oldParent) != newTree.getFolderId(newParent)
+                || !oldTree.folderNameEquals(oldFolder, newTree, newFolder);
+    }
+
+    private void compareFilesById() {
+        int oldCount = oldTree.getFileCount();
+        int newCount = newTree.getFileCount();
+        IntList removed = new IntList();
+        IntList added = new IntList();
+        int i = 0;
+        int j = 0;
+        while (i < oldCount || j < newCount) {
+            int oldFile = i < oldCount ? oldTree.getFileByIdRank(i) : -1;
+            int newFile = j < newCount ? newTree.getFileByIdRank(j) : -1;
+            int order = oldFile < 0 ? 1 : newFile < 0 ? -1
+                    : Long.compare(oldTree.getFileId(oldFile), newTree.getFileId(newFile));
+            if (order < 0) {
+                removed.add(oldFile);
+                i++;
+            } else if (order > 0) {
+                added.add(newFile);
+                j++;
+            } else {
+                if (oldTree.getFolderId(oldTree.getFileFolder(oldFile))
+                        != newTree.getFolderId(newTree.getFileFolder(newFile))
+                        || !oldTree.fileNameEquals(oldFile, newTree, newFile)) {
+                    emit(Type.MOVED, false, oldFile, newFile);
+                }
+                if (isModified(oldFile, newFile)) {
+                    emit(Type.MODIFIED, false, oldFile, newFile);
+                }
+                i++;
+                j++;
+            }
+        }
+        matchMoves(removed, added);
+    }
+
+    private void compareFoldersByPath(long[] oldFolderKeys, long[] newFolderKeys) {
+        LongIntMultiMap oldFolders = new LongIntMultiMap(oldFolderKeys.length);
+        for (int i = 0; i < oldFolderKeys.length; i++) {
+            oldFolders.put(oldFolderKeys[i], i);
+        }
+        boolean[] matched = new boolean[oldFolderKeys.length];
+        for (int j = 0; j < newFolderKeys.length; j++) {
+            int oldFolder = oldFolders.get(newFolderKeys[j]);
+            if (oldFolder >= 0) {
+                matched[oldFolder] = true;
+            } else {
+                emit(Type.ADDED, true, -1, j);
+            }
+        }
+        for (int i = 0; i < matched.length; i++) {
+            if (!matched[i]) {
+                emit(Type.REMOVED, true, i, -1);
+            }
+        }
+    }
+
+    private void compareFilesByPath(long[] oldFolderKeys, long[] newFolderKeys) {
+        int oldCount = oldTree.getFileCount();
+        LongIntMultiMap oldFiles = new LongIntMultiMap(oldCount);
+        for (int i = 0; i < oldCount; i++) {
+            oldFiles.put(hash(oldFolderKeys[oldTree.getFileFolder(i)], oldTree.getFileName(i)), i);
+        }
+        boolean[] matched = new boolean[oldCount];
+        IntList added = new IntList();
+        for (int j = 0; j < newTree.getFileCount(); j++) {
+            int oldFile = oldFiles.get(hash(newFolderKeys[newTree.getFileFolder(j)], newTree.getFileName(j)));
+            if (oldFile >= 0) {
+                matched[oldFile] = true;
+                if (isModified(oldFile, j)) {
+                    emit(Type.MODIFIED, false, oldFile, j);
+                }
+            } else {
+                added.add(j);
+            }
+        }
+        IntList removed = new IntList();
+        for (int i = 0; i < oldCount; i++) {
+            if (!matched[i]) {
+                removed.add(i);
+            }
+        }
+        matchMoves(removed, added);
+    }
+
+    /**
+     * Reports removed and added Files with the same length and hash as moves, and the others as they are.
+     */
+    private void matchMoves(IntList removed, IntList added) {
+        LongIntMultiMap byHash = new LongIntMultiMap(oldTree.getFileCount());
+        for (int i = 0; i < removed.size; i++) {
+            int oldFile = removed.values[i];
+            if (oldTree.getLength(oldFile) > 0 && oldTree.getHashBytes(oldFile).length > 0) {
+                byHash.put(getHashKey(oldTree, oldFile), oldFile);
+            }
+        }
+        boolean[] moved = new boolean[oldTree.getFileCount()];
+        for (int j = 0; j < added.size; j++) {
+            int newFile = added.values[j];
+            int oldFile = -1;
+            if (newTree.getLength(newFile) > 0 && newTree.getHashBytes(newFile).length > 0) {
+                for (int candidate = byHash.get(getHashKey(newTree, newFile)); candidate >= 0;
+                     candidate = byHash.next(candidate)) {
+                    if (!moved[candidate] && oldTree.getLength(candidate) == newTree.getLength(newFile)
+                            && oldTree.hashEquals(candidate, newTree, newFile)) {
+                        oldFile = candidate;
+                        break;
+                    }
+                }
+            }
+            if (oldFile >= 0) {
+                moved[oldFile] = true;
+                emit(Type.MOVED, false, oldFile, newFile);
+            } else {
+                emit(Type.ADDED, false, -1, newFile);
+            }
+        }
+        for (int i = 0; i < removed.size; i++) {
+            if (!moved[removed.values[i]]) {
+                emit(Type.REMOVED, false, removed.values[i], -1);
+            }
+        }
+    }
+
+    private boolean isModified(int oldFile, int newFile) {
+        if (oldTree.getLength(oldFile) != newTree.getLength(newFile)) {
+            return true;
+        }
+        byte[] oldHash = oldTree.getHashBytes(oldFile);
+        byte[] newHash = newTree.getHashBytes(newFile);
+        if (oldHash.length > 0 && oldHash.length == newHash.length) {
+            return !Arrays.equals(oldHash, newHash);
+        }
+        long oldTime = oldTree.getLastWriteTime(oldFile);
+        long newTime = newTree.getLastWriteTime(newFile);
+        return oldTime != CompactTree.UNKNOWN_TIME && newTime != CompactTree.UNKNOWN_TIME
+                && Math.floorDiv(oldTime, 1000) != Math.floorDiv(newTime, 1000);
+    }
+
+    private void emit(Type type, boolean folder, int oldIndex, int newIndex) {
+        statistics.count(type, folder);
+        changes.accept(new Change(type, folder, oldIndex, newIndex));
+    }
+
+    private Statistics finish() {
+        statistics.elapsedNanos = System.nanoTime() - statistics.startNanos;
+        return statistics;
+    }
+
+    /**
+     * Hashes the lower-case path of every Folder below its root; Folders are ordered parents first.
+     */
+    private static long[] getFolderKeys(CompactTree tree) {
+        long[] keys = new long[tree.getFolderCount()];
+        for (int i = 0; i < keys.length; i++) {
+            int parent = tree.getParent(i);
+            keys[i] = parent < 0 ? FNV_OFFSET : hash(keys[parent], tree.getFolderName(i));
+        }
+        return keys;
+    }
+
+    /**
+     * Extends the hash of a path with a separator and a name (64-bit FNV-1a over the lower-case characters).
+     */
+    private static long hash(long parentKey, String name) {
+        long hash = (parentKey ^ '/') * FNV_PRIME;
+        if (name != null) {
+            String key = name.toLowerCase(Locale.ROOT);
+            for (int i = 0; i < key.length(); i++) {
+                hash = (hash ^ key.charAt(i)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    private static long getHashKey(CompactTree tree, int file) {
+        byte[] hash = tree.getHashBytes(file);
+        long key = FNV_OFFSET;
+        for (byte b : hash) {
+            key = (key ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return key;
+    }
+
+    /**
+     * A change of a Folder or File.
+     */
+    public class Change {
+        private final Type type;
+        private final boolean folder;
+        private final int oldIndex;
+        private final int newIndex;
+
+        Change(Type type, boolean folder, int oldIndex, int newIndex) {
+            this.type = type;
+            this.folder = folder;
+            this.oldIndex = oldIndex;
+            this.newIndex = newIndex;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return true for a Folder, false for a File
+         */
+        public boolean isFolder() {
+            return folder;
+        }
+
+        /**
+         * @return the index in the earlier snapshot or -1 for an added entry
+         */
+        public int getOldIndex() {
+            return oldIndex;
+        }
+
+        /**
+         * @return the index in the later snapshot or -1 for a removed entry
+         */
+        public int getNewIndex() {
+            return newIndex;
+        }
+
+        /**
+         * @return the virtual path in the earlier snapshot or null for an added entry
+         */
+        public String getOldPath() {
+            return getPath(oldTree, oldIndex);
+        }
+
+        /**
+         * @return the virtual path in the later snapshot or null for a removed entry
+         */
+        public String getNewPath() {
+            return getPath(newTree, newIndex);
+        }
+
+        private String getPath(CompactTree tree, int index) {
+            if (index < 0) {
+                return null;
+            }
+            return folder ? tree.getFolderPath(index)
+                    : tree.getFolderPath(tree.getFileFolder(index)) + tree.getFileName(index);
+        }
+
+        @Override
+        public String toString() {
+            String path = newIndex >= 0 ? getNewPath() : getOldPath();
+            return type == Type.MOVED ? String.format("%s %s -> %s", type, getOldPath(), path)
+                    : String.format("%s %s", type, path);
+        }
+    }
+
+    /**
+     * The number of changes of each kind.
+     */
+    public static class Statistics {
+        private final int[] folders = new int[Type.values().length];
+        private final int[] files = new int[Type.values().length];
+        private final long startNanos = System.nanoTime();
+        private long elapsedNanos;
+
+        void count(Type type, boolean folder) {
+            (folder ? folders : files)[type.ordinal()]++;
+        }
+
+        public int getFolders(Type type) {
+            return folders[type.ordinal()];
+        }
+
+        public int getFiles(Type type) {
+            return files[type.ordinal()];
+        }
+
+        /**
+         * @return the time the comparison took in milliseconds
+         */
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d added, %d removed, %d modified, %d moved files; "
+                            + "%d added, %d removed, %d moved folders (%d ms)",
+                    getFiles(Type.ADDED), getFiles(Type.REMOVED), getFiles(Type.MODIFIED), getFiles(Type.MOVED),
+                    getFolders(Type.ADDED), getFolders(Type.REMOVED), getFolders(Type.MOVED), getElapsedMillis());
+        }
+    }
+
+    /**
+     * Growable list of ints.
+     */
+    private static class IntList {
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Open-addressing hash map from long keys to element indexes, keeping every element of a key.
+     * Elements must be between 0 and the capacity given to the constructor.
+     */
+    private static class LongIntMultiMap {
+        private final long[] keys;
+        private final int[] heads;
+        private final int[] next;
+        private final int mask;
+
+        LongIntMultiMap(int elements) {
+            int capacity = Integer.highestOneBit(Math.max(2, elements * 2 - 1)) << 1;
+            keys = new long[capacity];
+            heads = new int[capacity];
+            next = new int[Math.max(1, elements)];
+            mask = capacity - 1;
+        }
+
+        void put(long key, int element) {
+            int slot = find(key);
+            keys[slot] = key;
+            next[element] = heads[slot];
+            heads[slot] = element + 1;
+        }
+
+        /**
+         * @return the last element put with the key or -1
+         */
+        int get(long key) {
+            return heads[find(key)] - 1;
+        }
+
+        /**
+         * @return the element put before the given one with the same key or -1
+         */
+        int next(int element) {
+            return next[element] - 1;
+        }
+
+        private int find(long key) {
+            int slot = (int) mix(key) & mask;
+            while (heads[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private static long mix(long key) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            return key ^ key >>> 33;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package services;
+
+import entities.File;
+import entities.Folder;
+import util.APIGateway;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a Folder tree to a stream as a zip archive without staging it on disk.
+ * <p>
+ * A walker thread lists the folders and queues the archive entries in order, while a pool
+ * of workers prefetches the contents of upcoming small files into memory. The caller's thread
+ * writes the entries sequentially; large files are not prefetched but streamed straight from
+ * the storage endpoint into the archive when their turn comes. Both the number of queued entries
+ * and the amount of prefetched data are bounded.
+ */
+class ZipExport {
+
+    private static final int MAX_PREFETCHED_FILE_SIZE = 4 * 1024 * 1024;
+    private static final int PREFETCH_BUDGET_KILOBYTES = 64 * 1024;
+    private static final int QUEUED_ENTRIES_PER_WORKER = 4;
+
+    private final long syncPointId;
+    private final boolean suppressErrors;
+    private final ExecutorService prefetch;
+    private final BlockingQueue<Entry> queue;
+    private final Semaphore prefetchBudget = new Semaphore(PREFETCH_BUDGET_KILOBYTES);
+    private final AtomicInteger failures = new AtomicInteger();
+
+    ZipExport(long syncPointId, int concurrency, boolean suppressErrors) {
+        this.syncPointId = syncPointId;
+        this.suppressErrors = suppressErrors;
+        this.prefetch = Executors.newFixedThreadPool(Math.max(1, concurrency), runnable -> {
+            Thread thread = new Thread(runnable, "zip-export-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, concurrency) * QUEUED_ENTRIES_PER_WORKER);
+    }
+
+    /**
+     * Writes a Folder and all its subfolders to a stream as a zip archive.
+     * The stream is not closed.
+     *
+     * @param folderId
+     *            the Folder ID
+     * @param out
+     *            the stream to write the archive to
+     * @return true if every Folder and File was exported
+     */
+    boolean execute(long folderId, OutputStream out) throws IOException {
+        Thread walker = new Thread(() -> walk(folderId), "zip-export-walker");
+        walker.setDaemon(true);
+        walker.start();
+
+        int exportedFiles = 0;
+        try {
+            ZipOutputStream zip = new ZipOutputStream(out);
+            Entry entry;
+            while ((entry = queue.take()) != Entry.END) {
+                if (entry.file == null) {
+                    zip.putNextEntry(new ZipEntry(entry.name));
+                    zip.closeEntry();
+                } else if (writeFile(zip, entry)) {
+                    exportedFiles++;
+                }
+            }
+            zip.finish();
+            zip.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.incrementAndGet();
+        } finally {
+            walker.interrupt();
+            prefetch.shutdownNow();
+        }
+
+        // logged with the requests, which keeps it out of an archive written to the console
+        APIGateway.getLog().println(String.format("Exported %d files, %d failures.",
+                exportedFiles, failures.get()));
+        return failures.get() == 0;
+    }
+
+    private boolean writeFile(ZipOutputStream zip, Entry entry) throws IOException, InterruptedException {
+        try {
+            if (entry.contents != null) {
+                byte[] contents = entry.contents.get();
+                if (contents == null) {
+                    failures.incrementAndGet();
+                    return false;
+                }
+                zip.putNextEntry(new ZipEntry(entry.name));
+                zip.write(contents);
+                zip.closeEntry();
+                return true;
+            }
+
+            zip.putNextEntry(new ZipEntry(entry.name));
+            boolean downloaded = FileService.downloadFile(syncPointId, entry.file, zip, suppressErrors);
+            zip.closeEntry();
+            if (!downloaded) {
+                // the entry is already in the archive, so the best that can be done is to report it
+                System.err.println(String.format("The archive entry %s is incomplete.", entry.name));
+                failures.incrementAndGet();
+            }
+            return downloaded;
+        } catch (ExecutionException e) {
+            failures.incrementAndGet();
+            return false;
+        } finally {
+            prefetchBudget.release(entry.prefetchKilobytes);
+        }
+    }
+
+    private void walk(long rootFolderId) {
+        Deque<Entry> folders = new ArrayDeque<>();
+        folders.push(new Entry("", rootFolderId));
+        try {
+            while (!folders.isEmpty()) {
+                Entry folderEntry = folders.pop();
+                Folder folder = FolderService.listFolder(syncPointId, folderEntry.folderId, suppressErrors);
+                if (folder == null) {
+                    failures.incrementAndGet();
+                    continue;
+                }
+                if (!folderEntry.name.isEmpty()) {
+                    queue.put(folderEntry);
+                }
+
+                if (folder.Files != null) {
+                    for (File file : folder.Files) {
+                        queue.put(createFileEntry(folderEntry.name + file.Filename, file));
+                    }
+                }
+                if (folder.Folders != null) {
+                    // push in reverse to keep the listing order in the archive
+                    for (int i = folder.Folders.length - 1; i >= 0; i--) {
+                        Folder subfolder = folder.Folders[i];
+                        folders.push(new Entry(folderEntry.name + subfolder.Name + "/", subfolder.FolderId));
+                    }
+                }
+            }
+            queue.put(Entry.END);
+        } catch (InterruptedException e) {
+            // the writer has given up, nobody is waiting for the end of the archive
+            failures.incrementAndGet();
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            e.printStackTrace();
+            try {
+                queue.put(Entry.END);
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private Entry createFileEntry(String name, File file) throws InterruptedException {
+        if (file.Length > MAX_PREFETCHED_FILE_SIZE) {
+            return new Entry(name, file, null, 0);
+        }
+
+        int kilobytes = (int) ((file.Length + 1023) / 1024);
+        prefetchBudget.acquire(kilobytes);
+        Future<byte[]> contents = prefetch.submit(() -> {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) file.Length);
+            return FileService.downloadFile(syncPointId, file, buffer, suppressErrors) ? buffer.toByteArray() : null;
+        });
+        return new Entry(name, file, contents, kilobytes);
+    }
+
+    /**
+     * An archive entry: a folder or a file with its prefetched contents, if any.
+     */
+    private static class Entry {
+        static final Entry END = new Entry("", 0);
+
+        final String name;
+        final long folderId;
+        final File file;
+        final Future<byte[]> contents;
+        final int prefetchKilobytes;
+
+        Entry(String name, long folderId) {
+            this.name = name;
+            this.folderId = folderId;
+            this.file = null;
+            this.contents = null;
+            this.prefetchKilobytes = 0;
+        }
+
+        Entry(String name, File file, Future<byte[]> contents, int prefetchKilobytes) {
+            this.name = name;
+            this.folderId = 0;
+            this.file = file;
+            this.contents = contents;
+            this.prefetchKilobytes = prefetchKilobytes;
+        }
+    }
+}
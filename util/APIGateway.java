@@ -3,6 +3,7 @@ package util;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import oauth.OAuth;
 import org.apache.commons.lang.StringUtils;
@@ -12,9 +13,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.Map;
 
@@ -25,10 +28,34 @@ public abstract class APIGateway {
 
 	protected static String provisioningAPIUrlPrefix;
 
+	// the stream the requests and responses are logged to, the console unless overridden
+	private static volatile PrintStream log;
+
 	static {
 		provisioningAPIUrlPrefix = ConfigurationHelper.getBaseApiEndpointUrl() + "provisioning/";
 	}
 
+	/**
+	 * Sends the logging of requests and responses to another stream, e.g. to {@link System#err}
+	 * while {@link System#out} carries data.
+	 *
+	 * @param stream the stream to log to, or null to log to {@link System#out}
+	 * @return the stream that was logged to before
+	 */
+	public static PrintStream setLog(PrintStream stream) {
+		PrintStream previous = log;
+		log = stream;
+		return previous;
+	}
+
+	/**
+	 * @return the stream requests and responses are logged to
+	 */
+	public static PrintStream getLog() {
+		PrintStream stream = log;
+		return stream != null ? stream : System.out;
+	}
+
 	/**
 	 * Creates request object to invoke the api REST call.
 	 *
@@ -70,7 +97,7 @@ public abstract class APIGateway {
 			boolean useMachineAccessTokenInsteadOfUserAccessToken
 	) throws IOException {
 		
-		System.out.println(String.format("Creating %s request to %s", method.toUpperCase(), uri));
+		getLog().println(String.format("Creating %s request to %s", method.toUpperCase(), uri));
 
 		URL url = new URL(uri);
 
@@ -114,7 +141,7 @@ public abstract class APIGateway {
 			body = body.replaceAll(" ", "  " );
 		}
 		
-		System.out.println( "[Body] " + body);
+		getLog().println( "[Body] " + body);
 
 		OutputStream requestStream = request.getOutputStream();
 
@@ -131,7 +158,7 @@ public abstract class APIGateway {
 	 */
 	private static void writeBody(HttpURLConnection request, byte[] body, String contentType)
 			throws IOException {
-		System.out.println( "[Body] " + body);
+		getLog().println( "[Body] " + body);
 
 		OutputStream requestStream = request.getOutputStream();
 
@@ -140,6 +167,24 @@ public abstract class APIGateway {
 		requestStream.close();
 	}
 
+	/**
+	 * Streams the body to the request.
+	 *
+	 * @param request The request object.
+	 * @param body The body writer.
+	 */
+	private static void writeBody(HttpURLConnection request, RequestBodyWriter body)
+			throws IOException {
+		getLog().println( "[Body] " + body.getContentLength() + " bytes");
+
+		request.setFixedLengthStreamingMode(body.getContentLength());
+		OutputStream requestStream = request.getOutputStream();
+
+		body.writeTo(requestStream);
+		requestStream.flush();
+		requestStream.close();
+	}
+
 	/**
 	 * Applies the application key and secret to the request
 	 * 
@@ -165,7 +210,7 @@ public abstract class APIGateway {
 			String appSecret = ConfigurationHelper.getApplicationSecret();
 
 			String encoded = Base64.getEncoder().encodeToString((appKey + ":" + appSecret).getBytes());
-			System.out.println("[Header] Authorization: Basic " + encoded + "\n"
+			getLog().println("[Header] Authorization: Basic " + encoded + "\n"
 					+ "\t\t(Base64 encoded combination of App key and App secret)\n"
 					+ "\t\t" + appKey + ":" + appSecret);
 			request.addRequestProperty("Authorization", "Basic " + encoded);
@@ -174,24 +219,24 @@ public abstract class APIGateway {
 				// handling the call to oauth/token for obtaining Machine access token for SVA case
 				String machineToken = ConfigurationHelper.getMachineToken();
 
-				System.out.println("[Header] Sync-Machine-Token: " + machineToken);
+				getLog().println("[Header] Sync-Machine-Token: " + machineToken);
 				request.setRequestProperty("Sync-Machine-Token", machineToken);
 			} else {
 				// regular call to oauth/token for obtaining user access token for most of the cases
 				String userToken = ConfigurationHelper.getSyncplicityAdminKey();
 
-				System.out.println("[Header] Sync-App-Token: " + userToken);
+				getLog().println("[Header] Sync-App-Token: " + userToken);
 				request.setRequestProperty("Sync-App-Token", userToken);
 			}
 		}
 		else {
-			System.out.println( "[Header] AppKey: " + appKey);
+			getLog().println( "[Header] AppKey: " + appKey);
 			request.setRequestProperty("AppKey", appKey);
 
 			String accessToken = useMachineAccessTokenInsteadOfUserAccessToken ?
 					APIContext.getMachineAccessToken() :
 					APIContext.getAccessToken();
-			System.out.println( "[Header] Authorization: Bearer " + accessToken);
+			getLog().println( "[Header] Authorization: Bearer " + accessToken);
 			request.setRequestProperty("Authorization", "Bearer " + accessToken);
 		}
 
@@ -219,13 +264,13 @@ public abstract class APIGateway {
 				shouldRefreshToken.setResult(false);
 			}
 			
-			System.out.println();
-			System.out.println("Trying to read response...");
+			getLog().println();
+			getLog().println("Trying to read response...");
 
 			InputStream responseStream = request.getInputStream();
 
 			if (responseStream == null) {
-				System.out.println("Response wasn't received.");
+				getLog().println("Response wasn't received.");
 				return null;
 			}
 
@@ -242,7 +287,7 @@ public abstract class APIGateway {
 			response = responseBuffer.toString();
 
 			if( StringUtils.isEmpty(response) || StringUtils.isWhitespace(response) ) {
-				System.out.println("Received response is empty.");
+				getLog().println("Received response is empty.");
 				return null;
 			}
 
@@ -255,13 +300,13 @@ public abstract class APIGateway {
 				String prettyJsonString = gson.toJson(je);
 				prettyJsonString = prettyJsonString.replaceAll(" ", "  ");
 
-				System.out.println("Response: \n" + prettyJsonString);
+				getLog().println("Response: \n" + prettyJsonString);
 
 				if (!classType.isAssignableFrom(String.class)) {
 					return JSONSerialization.deserialize(response, classType);
 				}
 			} catch (Exception e) {
-				System.out.println("Could not parse the response as JSON. Probably the response is of some other format.");
+				getLog().println("Could not parse the response as JSON. Probably the response is of some other format.");
 			}
 
 			return (T) response;
@@ -365,6 +410,20 @@ public abstract class APIGateway {
 			Class<T> classType,
 			boolean suppressErrors,
 			boolean useMachineAccessTokenInsteadOfUserAccessToken) {
+		return ExecutionLane.METADATA.call(() -> sendGet(
+				uri,
+				additionalHeaders,
+				classType,
+				suppressErrors,
+				useMachineAccessTokenInsteadOfUserAccessToken));
+	}
+
+	private static <T> T sendGet(
+			String uri,
+			Map<String, String> additionalHeaders,
+			Class<T> classType,
+			boolean suppressErrors,
+			boolean useMachineAccessTokenInsteadOfUserAccessToken) {
 		HttpURLConnection request;
 		String method = "GET";
 		try {
@@ -386,21 +445,21 @@ public abstract class APIGateway {
 
         if (shouldRefreshToken.getResult())
         {
-        	System.out.println();
-        	System.out.println("Trying to re-authenticate using the same credentials.");
+        	getLog().println();
+        	getLog().println("Trying to re-authenticate using the same credentials.");
 
             // it's needed to authorize again
             // trying to do it and then re-send the initial request
             OAuth.refreshToken();
 
-            System.out.println();
+            getLog().println();
             if (!APIContext.isAuthenticated())
             {
-            	System.out.println("The OAuth authentication has failed, GET request can't be performed.");
+            	getLog().println("The OAuth authentication has failed, GET request can't be performed.");
                 return null;
             }
 
-            System.out.println("Authentication was successful. Trying to send GET request again for the last time.");
+            getLog().println("Authentication was successful. Trying to send GET request again for the last time.");
 
             try {
     			request = createRequest(method, uri, null, false, false);
@@ -415,6 +474,99 @@ public abstract class APIGateway {
 		return response;
 	}
 
+	/**
+	 * Create GET HTTP request to url and return the connection with the response
+	 * status already received, so that the caller can stream the response body
+	 * instead of having it buffered and converted to a string.
+	 *
+	 * @param uri             The request url.
+	 * @param additionalHeaders Additional request headers, e.g. Range.
+	 * @param suppressErrors boolean to determine if output should be print to console on errors
+	 *
+	 * @return The connection to read the response from or null if the request failed.
+	 *         The caller is responsible for closing the connection input stream,
+	 *         and for holding a slot of the {@link ExecutionLane} the stream belongs to until then.
+	 */
+	protected static HttpURLConnection httpGetStream(
+			String uri,
+			Map<String, String> additionalHeaders,
+			boolean suppressErrors,
+			boolean useMachineAccessTokenInsteadOfUserAccessToken) {
+		String method = "GET";
+		try {
+			HttpURLConnection request = createRequest(
+					method,
+					uri,
+					additionalHeaders,
+					false,
+					false,
+					useMachineAccessTokenInsteadOfUserAccessToken);
+			int responseCode = request.getResponseCode();
+
+			if (responseCode == 401 || responseCode == 403) {
+				request.disconnect();
+
+				getLog().println();
+				getLog().println("Trying to re-authenticate using the same credentials.");
+
+				// it's needed to authorize again
+				// trying to do it and then re-send the initial request
+				OAuth.refreshToken();
+
+				getLog().println();
+				if (!APIContext.isAuthenticated()) {
+					getLog().println("The OAuth authentication has failed, GET request can't be performed.");
+					return null;
+				}
+
+				getLog().println("Authentication was successful. Trying to send GET request again for the last time.");
+
+				request = createRequest(
+						method,
+						uri,
+						additionalHeaders,
+						false,
+						false,
+						useMachineAccessTokenInsteadOfUserAccessToken);
+				responseCode = request.getResponseCode();
+			}
+
+			if (responseCode >= 400) {
+				if (!suppressErrors) {
+					System.err.println();
+					System.err.println(String.format("\tError occurs during request to %s.", uri));
+					System.err.println(String.format("\tReceived: %d %s.", responseCode, request.getResponseMessage()));
+				}
+				request.disconnect();
+				return null;
+			}
+
+			return request;
+		} catch (IOException e) {
+			if (!suppressErrors) {
+				e.printStackTrace();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Deserializes a JSON response body read from a stream, e.g. one opened with
+	 * {@link #httpGetStream(String, Map, boolean, boolean)}. The stream is closed.
+	 *
+	 * @param in The response body.
+	 * @param classType The type of returned object.
+	 *
+	 * @return The object representation of the response or null if the response is empty.
+	 */
+	protected static <T> T readJson(InputStream in, Class<T> classType) throws IOException {
+		try (InputStreamReader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+			return JSONSerialization.createGson().fromJson(reader, classType);
+		} catch (JsonParseException e) {
+			throw new IOException("Could not parse the response as JSON.", e);
+		}
+	}
+
 	/**
 	 * Create POST HTTP request to url with body and return deserialized object
 	 * of type classType.
@@ -469,6 +621,27 @@ public abstract class APIGateway {
 			String body,
 			Map<String, String> additionalHeaders,
 			Class<T> classType
+	) {
+		return ExecutionLane.METADATA.call(() -> sendPost(
+				isAuthenticationCall,
+				isMachineAuthCall,
+				useMachineAccessTokenInsteadOfUserAccessToken,
+				uri,
+				contentType,
+				body,
+				additionalHeaders,
+				classType));
+	}
+
+	private static <T> T sendPost(
+			boolean isAuthenticationCall,
+			boolean isMachineAuthCall,
+			boolean useMachineAccessTokenInsteadOfUserAccessToken,
+			String uri,
+			String contentType,
+			String body,
+			Map<String, String> additionalHeaders,
+			Class<T> classType
 	) {
 		HttpURLConnection request;
 		String method = "POST";
@@ -493,21 +666,21 @@ public abstract class APIGateway {
         
         if (!isAuthenticationCall && shouldRefreshToken.getResult())
         {
-        	System.out.println();
-        	System.out.println("Trying to re-authenticate using the same credentials.");
+        	getLog().println();
+        	getLog().println("Trying to re-authenticate using the same credentials.");
 
             // it's needed to authorize again
             // trying to do it and then re-send the initial request
             OAuth.refreshToken();
 
-            System.out.println();
+            getLog().println();
             if (!APIContext.isAuthenticated())
             {
-            	System.out.println("The OAuth authentication has failed, POST request can't be performed.");
+            	getLog().println("The OAuth authentication has failed, POST request can't be performed.");
                 return null;
             }
 
-            System.out.println("Authentication was successful. Trying to send POST request again for the last time.");
+            getLog().println("Authentication was successful. Trying to send POST request again for the last time.");
             
             try {
             	request = createRequest(method, uri, additionalHeaders, false, false);
@@ -527,7 +700,7 @@ public abstract class APIGateway {
 
 	/**
 	 * Create POST HTTP request to url with body and return deserialized object
-	 * of type classType.
+	 * of type classType. Binary bodies are sent in the {@link ExecutionLane#TRANSFER} lane.
 	 *
 	 * @param uri       The request url.
 	 * @param body      The request body as byte[]
@@ -545,6 +718,27 @@ public abstract class APIGateway {
 			byte[] body,
 			Map<String, String> additionalHeaders,
 			Class<T> classType
+	) {
+		return ExecutionLane.TRANSFER.call(() -> sendPost(
+				isAuthenticationCall,
+				isMachineAuthCall,
+				useMachineAccessTokenInsteadOfUserAccessToken,
+				uri,
+				contentType,
+				body,
+				additionalHeaders,
+				classType));
+	}
+
+	private static <T> T sendPost(
+			boolean isAuthenticationCall,
+			boolean isMachineAuthCall,
+			boolean useMachineAccessTokenInsteadOfUserAccessToken,
+			String uri,
+			String contentType,
+			byte[] body,
+			Map<String, String> additionalHeaders,
+			Class<T> classType
 	) {
 		HttpURLConnection request;
 		String method = "POST";
@@ -568,20 +762,20 @@ public abstract class APIGateway {
 		T response = readResponse(request, classType, false, shouldRefreshToken);
 
 		if (!isAuthenticationCall && shouldRefreshToken.getResult()) {
-			System.out.println();
-			System.out.println("Trying to re-authenticate using the same credentials.");
+			getLog().println();
+			getLog().println("Trying to re-authenticate using the same credentials.");
 
 			// it's needed to authorize again
 			// trying to do it and then re-send the initial request
 			OAuth.refreshToken();
 
-			System.out.println();
+			getLog().println();
 			if (!APIContext.isAuthenticated()) {
-				System.out.println("The OAuth authentication has failed, POST request can't be performed.");
+				getLog().println("The OAuth authentication has failed, POST request can't be performed.");
 				return null;
 			}
 
-			System.out.println("Authentication was successful. Trying to send POST request again for the last time.");
+			getLog().println("Authentication was successful. Trying to send POST request again for the last time.");
 
 			try {
 				request = createRequest(method, uri, additionalHeaders, false, false);
@@ -599,6 +793,102 @@ public abstract class APIGateway {
 		return response;
 	}
 
+	/**
+	 * Create POST HTTP request to url with a streamed body and return deserialized object
+	 * of type classType. The body is never held in memory as a whole
+	 * and is sent in the {@link ExecutionLane#TRANSFER} lane.
+	 *
+	 * @param uri       The request url.
+	 * @param body      The request body writer.
+	 * @param classType The type of returned object.
+	 *
+	 * @return The object representation of received response or null if
+	 *         response is empty.
+	 */
+	protected static <T> T httpPost(
+			boolean useMachineAccessTokenInsteadOfUserAccessToken,
+			String uri,
+			String contentType,
+			RequestBodyWriter body,
+			Map<String, String> additionalHeaders,
+			Class<T> classType
+	) {
+		return ExecutionLane.TRANSFER.call(() -> sendPost(
+				useMachineAccessTokenInsteadOfUserAccessToken,
+				uri,
+				contentType,
+				body,
+				additionalHeaders,
+				classType));
+	}
+
+	private static <T> T sendPost(
+			boolean useMachineAccessTokenInsteadOfUserAccessToken,
+			String uri,
+			String contentType,
+			RequestBodyWriter body,
+			Map<String, String> additionalHeaders,
+			Class<T> classType
+	) {
+		HttpURLConnection request;
+		String method = "POST";
+		try {
+			request = createRequest(
+					method,
+					uri,
+					additionalHeaders,
+					false,
+					false,
+					useMachineAccessTokenInsteadOfUserAccessToken);
+			request.setRequestProperty("Content-Type", contentType);
+
+			writeBody(request, body);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+
+		BooleanResult shouldRefreshToken = new BooleanResult();
+		T response = readResponse(request, classType, false, shouldRefreshToken);
+
+		if (shouldRefreshToken.getResult()) {
+			getLog().println();
+			getLog().println("Trying to re-authenticate using the same credentials.");
+
+			// it's needed to authorize again
+			// trying to do it and then re-send the initial request
+			OAuth.refreshToken();
+
+			getLog().println();
+			if (!APIContext.isAuthenticated()) {
+				getLog().println("The OAuth authentication has failed, POST request can't be performed.");
+				return null;
+			}
+
+			getLog().println("Authentication was successful. Trying to send POST request again for the last time.");
+
+			try {
+				request = createRequest(
+						method,
+						uri,
+						additionalHeaders,
+						false,
+						false,
+						useMachineAccessTokenInsteadOfUserAccessToken);
+				request.setRequestProperty("Content-Type", contentType);
+
+				writeBody(request, body);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+
+			response = readResponse(request, classType, false);
+		}
+
+		return response;
+	}
+
 	/**
 	 * Create POST HTTP request to url with entity and return deserialized
 	 * object of type type.
@@ -634,6 +924,13 @@ public abstract class APIGateway {
 	 *         response is empty.
 	 */
 	protected static <T> T httpPut(String uri, String body, Class<T> classType) {
+		return ExecutionLane.METADATA.call(() -> sendPut(
+				uri,
+				body,
+				classType));
+	}
+
+	private static <T> T sendPut(String uri, String body, Class<T> classType) {
 		HttpURLConnection request;
 		String method = "PUT";
 		try {
@@ -652,21 +949,21 @@ public abstract class APIGateway {
         
         if (shouldRefreshToken.getResult())
         {
-        	System.out.println();
-        	System.out.println("Trying to re-authenticate using the same credentials.");
+        	getLog().println();
+        	getLog().println("Trying to re-authenticate using the same credentials.");
 
             // it's needed to authorize again
             // trying to do it and then re-send the initial request
             OAuth.refreshToken();
 
-            System.out.println();
+            getLog().println();
             if (!APIContext.isAuthenticated())
             {
-            	System.out.println("The OAuth authentication has failed, PUT request can't be performed.");
+            	getLog().println("The OAuth authentication has failed, PUT request can't be performed.");
                 return null;
             }
 
-            System.out.println("Authentication was successful. Trying to send PUT request again for the last time.");
+            getLog().println("Authentication was successful. Trying to send PUT request again for the last time.");
             
             try {
             	request = createRequest(method, uri, null, false, false);
@@ -712,6 +1009,12 @@ public abstract class APIGateway {
 	 *         response is empty.
 	 */
 	protected static <T> T httpDelete(String uri, Class<T> classType) {
+		return ExecutionLane.METADATA.call(() -> sendDelete(
+				uri,
+				classType));
+	}
+
+	private static <T> T sendDelete(String uri, Class<T> classType) {
 		HttpURLConnection request;
 		String method = "DELETE";
 		try {
@@ -726,21 +1029,21 @@ public abstract class APIGateway {
         
         if (shouldRefreshToken.getResult())
         {
-        	System.out.println();
-        	System.out.println("Trying to re-authenticate using the same credentials.");
+        	getLog().println();
+        	getLog().println("Trying to re-authenticate using the same credentials.");
 
             // it's needed to authorize again
             // trying to do it and then re-send the initial request
             OAuth.refreshToken();
 
-            System.out.println();
+            getLog().println();
             if (!APIContext.isAuthenticated())
             {
-            	System.out.println("The OAuth authentication has failed, DELETE request can't be performed.");
+            	getLog().println("The OAuth authentication has failed, DELETE request can't be performed.");
                 return null;
             }
 
-            System.out.println("Authentication was successful. Trying to send DELETE request again for the last time.");
+            getLog().println("Authentication was successful. Trying to send DELETE request again for the last time.");
             
             try {
             	request = createRequest(method, uri, null, false, false);
@@ -0,0 +1,195 @@
+package util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token-bucket limit on the bandwidth of file transfers.
+ * <p>
+ * There is one process-wide throttle and one throttle per storage endpoint; every transferred chunk
+ * is counted against both. A throttle allows bursts of up to one second worth of its rate and makes
+ * transfers wait once they exceed it. The rates are read from the configuration on first use and
+ * can be changed at any time, e.g. lowered during business hours; a rate of 0 means unlimited.
+ * Only file contents are throttled, metadata calls are not affected.
+ */
+public class BandwidthThrottle {
+
+	private final static long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private static BandwidthThrottle globalThrottle = null;
+	private static final ConcurrentHashMap<String, BandwidthThrottle> endpointThrottles = new ConcurrentHashMap<>();
+	private static volatile Long defaultEndpointBytesPerSecond = null;
+
+	private long bytesPerSecond;
+	private long nextFreeNanos = System.nanoTime();
+
+	/**
+	 * Creates a throttle.
+	 *
+	 * @param bytesPerSecond the rate limit, 0 for unlimited
+	 */
+	public BandwidthThrottle(long bytesPerSecond) {
+		this.bytesPerSecond = Math.max(0, bytesPerSecond);
+	}
+
+	/**
+	 * Returns the process-wide throttle, initially limited by the maxBandwidthKilobytesPerSecond setting.
+	 *
+	 * @return the process-wide throttle
+	 */
+	public static synchronized BandwidthThrottle getGlobal() {
+		if (globalThrottle == null) {
+			globalThrottle = new BandwidthThrottle(ConfigurationHelper.getMaxBandwidthKilobytesPerSecond() * 1024L);
+		}
+		return globalThrottle;
+	}
+
+	/**
+	 * Returns the throttle of the storage endpoint a URL points to, initially limited by
+	 * the maxEndpointBandwidthKilobytesPerSecond setting or the rate set with {@link #setEndpointDefault(long)}.
+	 *
+	 * @param url a URL on the storage endpoint
+	 * @return the endpoint throttle
+	 */
+	public static BandwidthThrottle getEndpoint(String url) {
+		return endpointThrottles.computeIfAbsent(getEndpointKey(url),
+				key -> new BandwidthThrottle(getEndpointDefault()));
+	}
+
+	/**
+	 * Changes the rate limit of all storage endpoints, including the ones that were not used yet.
+	 *
+	 * @param bytesPerSecond the rate limit, 0 for unlimited
+	 */
+	public static void setEndpointDefault(long bytesPerSecond) {
+		defaultEndpointBytesPerSecond = bytesPerSecond;
+		for (BandwidthThrottle throttle : endpointThrottles.values()) {
+			throttle.setBytesPerSecond(bytesPerSecond);
+		}
+	}
+
+	/**
+	 * Waits until a chunk transferred from or to a storage endpoint fits into both
+	 * the endpoint and the process-wide limit.
+	 *
+	 * @param url a URL on the storage endpoint
+	 * @param bytes the chunk size
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public static void consume(String url, long bytes) throws InterruptedIOException {
+		getEndpoint(url).acquire(bytes);
+		getGlobal().acquire(bytes);
+	}
+
+	/**
+	 * Wraps a stream so that everything written to it is throttled for a storage endpoint.
+	 *
+	 * @param out the stream to wrap
+	 * @param url a URL on the storage endpoint
+	 * @return the throttled stream
+	 */
+	public static OutputStream throttle(OutputStream out, String url) {
+		return new ThrottledOutputStream(out, url);
+	}
+
+	/**
+	 * @return the rate limit in bytes per second, 0 for unlimited
+	 */
+	public synchronized long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * Changes the rate limit. Chunks that are already waiting keep the wait time of the old rate.
+	 *
+	 * @param bytesPerSecond the rate limit, 0 for unlimited
+	 */
+	public synchronized void setBytesPerSecond(long bytesPerSecond) {
+		this.bytesPerSecond = Math.max(0, bytesPerSecond);
+		this.nextFreeNanos = System.nanoTime();
+	}
+
+	/**
+	 * Takes tokens for a chunk, waiting until enough tokens have accumulated.
+	 *
+	 * @param bytes the chunk size
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public void acquire(long bytes) throws InterruptedIOException {
+		long waitNanos;
+		synchronized (this) {
+			if (bytesPerSecond == 0) {
+				return;
+			}
+			long now = System.nanoTime();
+			// unused tokens accumulate for at most one second
+			if (nextFreeNanos < now - NANOS_PER_SECOND) {
+				nextFreeNanos = now - NANOS_PER_SECOND;
+			}
+			nextFreeNanos += (long) ((double) bytes * NANOS_PER_SECOND / bytesPerSecond);
+			waitNanos = nextFreeNanos - now;
+		}
+		if (waitNanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttling a transfer.");
+			}
+		}
+	}
+
+	private static long getEndpointDefault() {
+		Long bytesPerSecond = defaultEndpointBytesPerSecond;
+		if (bytesPerSecond == null) {
+			bytesPerSecond = ConfigurationHelper.getMaxEndpointBandwidthKilobytesPerSecond() * 1024L;
+			defaultEndpointBytesPerSecond = bytesPerSecond;
+		}
+		return bytesPerSecond;
+	}
+
+	private static String getEndpointKey(String url) {
+		try {
+			return new URL(url).getAuthority();
+		} catch (MalformedURLException e) {
+			return url;
+		}
+	}
+
+	/**
+	 * Stream that takes tokens for every chunk before writing it.
+	 */
+	private static class ThrottledOutputStream extends FilterOutputStream {
+		private final static int CHUNK_SIZE = 64 * 1024;
+
+		private final String url;
+
+		ThrottledOutputStream(OutputStream out, String url) {
+			super(out);
+			this.url = url;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			consume(url, 1);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int chunk = Math.min(len, CHUNK_SIZE);
+				consume(url, chunk);
+				out.write(b, off, chunk);
+				off += chunk;
+				len -= chunk;
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package util;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Pool of reusable direct buffers shared by all transfers.
+ * <p>
+ * Buffers are allocated on first use and returned to the pool when a transfer is done with them,
+ * so concurrent transfers do not allocate a new buffer each. The total size of the buffers is capped;
+ * once every buffer is in use, further transfers wait until one is released instead of allocating more.
+ */
+public class BufferPool {
+
+	private final static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private static BufferPool defaultPool = null;
+
+	private final int bufferSize;
+	private final Semaphore available;
+	private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Creates a pool.
+	 *
+	 * @param bufferSize the size of each buffer in bytes
+	 * @param maxBytes the maximum total size of the buffers; at least one buffer is always allowed
+	 */
+	public BufferPool(int bufferSize, long maxBytes) {
+		this.bufferSize = bufferSize;
+		this.available = new Semaphore((int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / bufferSize)), true);
+	}
+
+	/**
+	 * Returns the pool sized with the transferBufferPoolMegabytes setting.
+	 *
+	 * @return the shared pool
+	 */
+	public static synchronized BufferPool getDefault() {
+		if (defaultPool == null) {
+			defaultPool = new BufferPool(DEFAULT_BUFFER_SIZE,
+					ConfigurationHelper.getTransferBufferPoolMegabytes() * 1024L * 1024L);
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * @return the size of each buffer in bytes
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, waiting for one to be released if all buffers are in use.
+	 * The buffer must be given back with {@link #release(ByteBuffer)}.
+	 *
+	 * @return the buffer
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public ByteBuffer acquire() throws InterruptedIOException {
+		try {
+			available.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a transfer buffer.");
+		}
+		ByteBuffer buffer = freeBuffers.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool.
+	 *
+	 * @param buffer the buffer taken with {@link #acquire()}, may be null
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer != null) {
+			freeBuffers.offer(buffer);
+			available.release();
+		}
+	}
+}
@@ -126,6 +126,146 @@ public class ConfigurationHelper {
 		return getPropertyValueWithoutPlaceholder("uploadFilePath", "<Upload File Path>", "");
 	}
 
+	/**
+	 * Path to the file where SHA-256 hashes of local files are cached between runs, for the checks
+	 * that compare local files with remote ones. Uploads record the hashes they compute.
+	 * If not set, local files are re-read every time they are compared.
+	 */
+	public static String getHashCacheFilePath() {
+		return getPropertyValueWithoutPlaceholder("hashCacheFilePath", "<Hash Cache File Path>", "");
+	}
+
+	/**
+	 * Size in megabytes up to which uploaded streams of unknown length are buffered in memory
+	 * before they are spilled to a temporary file, at most 256.
+	 */
+	public static int getUploadMemoryBufferMegabytes() {
+		return getIntPropertyValue("uploadMemoryBufferMegabytes", 8);
+	}
+
+	/**
+	 * Maximum number of byte ranges a large file is downloaded with in parallel.
+	 */
+	public static int getMaxDownloadSegments() {
+		return getIntPropertyValue("maxDownloadSegments", 8);
+	}
+
+	/**
+	 * Number of files downloaded at the same time when a whole folder is downloaded.
+	 */
+	public static int getDownloadConcurrency() {
+		return getIntPropertyValue("downloadConcurrency", 8);
+	}
+
+	/**
+	 * Directory where downloaded file versions are cached.
+	 * If not set, every download is fetched from the storage endpoint.
+	 */
+	public static String getDownloadCacheDirectory() {
+		return getPropertyValueWithoutPlaceholder("downloadCacheDirectory", "<Download Cache Directory>", "");
+	}
+
+	/**
+	 * Maximum total size of the download cache in megabytes.
+	 */
+	public static int getDownloadCacheMaxMegabytes() {
+		return getIntPropertyValue("downloadCacheMaxMegabytes", 1024);
+	}
+
+	/**
+	 * File to keep the local index of SyncPoints, Folders and Files in.
+	 * If not set, there is no default index.
+	 */
+	public static String getMetadataIndexFilePath() {
+		return getPropertyValueWithoutPlaceholder("metadataIndexFilePath", "<Metadata Index File Path>", "");
+	}
+
+	/**
+	 * Maximum total size in megabytes of the buffers shared by all uploads and downloads.
+	 * Transfers wait for a free buffer once the limit is reached.
+	 */
+	public static int getTransferBufferPoolMegabytes() {
+		return getIntPropertyValue("transferBufferPoolMegabytes", 16);
+	}
+
+	/**
+	 * Maximum bandwidth in kilobytes per second of all uploads and downloads together, 0 for unlimited.
+	 */
+	public static int getMaxBandwidthKilobytesPerSecond() {
+		return getIntPropertyValue("maxBandwidthKilobytesPerSecond", 0);
+	}
+
+	/**
+	 * Maximum bandwidth in kilobytes per second of the uploads and downloads of each storage endpoint,
+	 * 0 for unlimited.
+	 */
+	public static int getMaxEndpointBandwidthKilobytesPerSecond() {
+		return getIntPropertyValue("maxEndpointBandwidthKilobytesPerSecond", 0);
+	}
+
+	/**
+	 * Number of metadata and control calls (listings, folder creation, authentication) run at the same time.
+	 */
+	public static int getMetadataConcurrency() {
+		return getIntPropertyValue("metadataConcurrency", 8);
+	}
+
+	/**
+	 * Number of uploads and downloads of file contents run at the same time.
+	 */
+	public static int getTransferConcurrency() {
+		return getIntPropertyValue("transferConcurrency", 16);
+	}
+
+	/**
+	 * Maximum number of paths kept by the path index, 0 to disable it.
+	 */
+	public static int getPathIndexMaxEntries() {
+		return getIntPropertyValue("pathIndexMaxEntries", 1000000);
+	}
+
+	/**
+	 * Number of seconds a path is known not to exist after a lookup did not find it.
+	 */
+	public static int getPathIndexNegativeSeconds() {
+		return getIntPropertyValue("pathIndexNegativeSeconds", 60);
+	}
+
+	/**
+	 * Maximum number of Folder listings per second a change monitor sends.
+	 */
+	public static int getChangePollRequestsPerSecond() {
+		return getIntPropertyValue("changePollRequestsPerSecond", 10);
+	}
+
+	/**
+	 * Shortest time in seconds between two listings of the same Folder by a change monitor.
+	 */
+	public static int getChangePollMinSeconds() {
+		return getIntPropertyValue("changePollMinSeconds", 30);
+	}
+
+	/**
+	 * Longest time in seconds between two listings of the same Folder by a change monitor.
+	 */
+	public static int getChangePollMaxSeconds() {
+		return getIntPropertyValue("changePollMaxSeconds", 3600);
+	}
+
+	/**
+	 * Maximum number of Folder listings per second an inventory scan sends across all SyncPoints, 0 for no limit.
+	 */
+	public static int getInventoryRequestsPerSecond() {
+		return getIntPropertyValue("inventoryRequestsPerSecond", 20);
+	}
+
+	/**
+	 * Time in milliseconds a local path must stay unchanged before a mirror uploads it.
+	 */
+	public static int getMirrorDebounceMillis() {
+		return getIntPropertyValue("mirrorDebounceMillis", 500);
+	}
+
 	public static boolean isMachineTokenAuthenticationEnabledForStorageVaults() {
 		String machineToken = getMachineToken();
 		return machineToken != null && !machineToken.isEmpty();
@@ -145,6 +285,22 @@ public class ConfigurationHelper {
 		return propertyValue.equals(placeholder) ? defaultValue : propertyValue;
 	}
 
+	/**
+	 * The method retrieves an integer property value.
+	 * @param key Property key
+	 * @param defaultValue Property default value
+	 * @return Property value. If the property is not set or is not a valid integer, then the default value is returned.
+	 */
+	private static int getIntPropertyValue(String key, int defaultValue) {
+		String propertyValue = getSettings().getProperty(key, "").trim();
+		try {
+			return propertyValue.isEmpty() ? defaultValue : Integer.parseInt(propertyValue);
+		} catch (NumberFormatException e) {
+			System.err.println(String.format("Invalid value '%s' of %s, using %d", propertyValue, key, defaultValue));
+			return defaultValue;
+		}
+	}
+
 	/**
 	 * Default group name used for creating user groups
 	 */
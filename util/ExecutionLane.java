@@ -0,0 +1,108 @@
+package util;
+
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Concurrency limit for one kind of API call.
+ * <p>
+ * Metadata and control calls (listings, folder creation, authentication) and bulk transfers
+ * of file contents run in separate lanes, each sized independently, so a job that keeps every
+ * transfer slot busy with long uploads or downloads does not delay interactive calls.
+ * A thread that already holds a slot of a lane may enter the same lane again without waiting,
+ * e.g. when a call re-authenticates before it is retried.
+ */
+public final class ExecutionLane {
+
+	/**
+	 * Lane of the metadata and control calls, sized with the metadataConcurrency setting.
+	 */
+	public static final ExecutionLane METADATA = new ExecutionLane("metadata",
+			ConfigurationHelper.getMetadataConcurrency());
+
+	/**
+	 * Lane of the uploads and downloads of file contents, sized with the transferConcurrency setting.
+	 */
+	public static final ExecutionLane TRANSFER = new ExecutionLane("transfer",
+			ConfigurationHelper.getTransferConcurrency());
+
+	static {
+		// keep enough idle connections per host for a full lane to reuse them (the JDK default is 5)
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections",
+					String.valueOf(Math.max(METADATA.getConcurrency(), TRANSFER.getConcurrency())));
+		}
+	}
+
+	private final String name;
+	private final int concurrency;
+	private final Semaphore slots;
+	private final ThreadLocal<int[]> depth = ThreadLocal.withInitial(() -> new int[1]);
+
+	private ExecutionLane(String name, int concurrency) {
+		this.name = name;
+		this.concurrency = Math.max(1, concurrency);
+		this.slots = new Semaphore(this.concurrency, true);
+	}
+
+	/**
+	 * @return the name of the lane
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of calls the lane runs at the same time
+	 */
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * @return an estimate of the number of threads waiting for a slot
+	 */
+	public int getQueueLength() {
+		return slots.getQueueLength();
+	}
+
+	/**
+	 * Takes a slot of the lane, waiting until one is free unless the thread already holds one.
+	 * Every call must be matched by a call of {@link #exit()}.
+	 */
+	public void enter() {
+		int[] held = depth.get();
+		if (held[0] == 0) {
+			slots.acquireUninterruptibly();
+		}
+		held[0]++;
+	}
+
+	/**
+	 * Gives back the slot taken with {@link #enter()}.
+	 */
+	public void exit() {
+		int[] held = depth.get();
+		if (held[0] == 0) {
+			throw new IllegalStateException(String.format("The thread holds no slot of the %s lane.", name));
+		}
+		if (--held[0] == 0) {
+			slots.release();
+		}
+	}
+
+	/**
+	 * Runs a call in a slot of the lane.
+	 *
+	 * @param call the call to run
+	 * @return the result of the call
+	 */
+	public <T> T call(Supplier<T> call) {
+		enter();
+		try {
+			return call.get();
+		} finally {
+			exit();
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package util;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent cache of SHA-256 hashes of local files.
+ * <p>
+ * Entries are keyed by the canonical file path and validated against the file size,
+ * last modification time and file key (the inode on POSIX file systems),
+ * so a file is only re-read when it has actually changed.
+ * <p>
+ * The cache is stored in a {@link RecordLog} with one record per cached hash or removal; when the
+ * replaced and removed entries outnumber the cached ones, the log is rewritten on load.
+ */
+public class FileHashCache implements Closeable {
+
+	private final static int RECORD_VERSION = 1;
+	private final static int MAX_RECORD_LENGTH = 256 * 1024;
+
+	private static FileHashCache defaultCache = null;
+	private static boolean defaultCacheResolved = false;
+
+	private final Path cacheFile;
+	private final Map<String, Entry> entries = new HashMap<>();
+	private final RecordLog log;
+	private int staleRecords;
+
+	/**
+	 * Opens (or creates) a hash cache stored in the given file.
+	 *
+	 * @param cacheFile the cache file
+	 */
+	public FileHashCache(Path cacheFile) throws IOException {
+		this.cacheFile = cacheFile.toAbsolutePath();
+		Path parent = this.cacheFile.getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		log = new RecordLog(this.cacheFile, "hash cache", MAX_RECORD_LENGTH);
+		log.replay(record -> {
+			Entry entry = decode(record);
+			Entry previous = entry.size < 0 ? entries.remove(entry.path) : entries.put(entry.path, entry);
+			if (previous != null || entry.size < 0) {
+				staleRecords++;
+			}
+		});
+		if (staleRecords > entries.size()) {
+			log.rewrite(out -> {
+				for (Entry entry : entries.values()) {
+					out.append(encode(entry));
+				}
+			});
+			staleRecords = 0;
+		}
+		log.open();
+	}
+
+	/**
+	 * Returns the cache configured with the hashCacheFilePath setting.
+	 *
+	 * @return the shared cache or null if no cache is configured or it cannot be opened
+	 */
+	public static synchronized FileHashCache getDefault() {
+		if (!defaultCacheResolved) {
+			defaultCacheResolved = true;
+			String path = ConfigurationHelper.getHashCacheFilePath();
+			if (StringUtils.isNotBlank(path)) {
+				try {
+					defaultCache = new FileHashCache(Paths.get(path));
+				} catch (IOException e) {
+					System.err.println(String.format("Could not open hash cache '%s'", path));
+					e.printStackTrace();
+				}
+			}
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * Returns the SHA-256 hash of a file, reading the file only if it is not cached
+	 * or has changed since it was cached.
+	 *
+	 * @param file the file to hash
+	 * @return the lower-case hex SHA-256 hash
+	 */
+	public String getSha256(Path file) throws IOException {
+		Path realPath = file.toRealPath();
+		String key = realPath.toString();
+		BasicFileAttributes before = Files.readAttributes(realPath, BasicFileAttributes.class);
+
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.matches(before)) {
+				return entry.sha256;
+			}
+		}
+
+		String sha256 = HashHelper.sha256(realPath);
+
+		// only remember the hash if the file did not change while it was being read
+		BasicFileAttributes after = Files.readAttributes(realPath, BasicFileAttributes.class);
+		Entry entry = new Entry(key, before, sha256);
+		if (entry.matches(after)) {
+			put(entry);
+		}
+		return sha256;
+	}
+
+	/**
+	 * Remembers a hash computed while the file was read for another purpose, e.g. while it was uploaded.
+	 * The hash is only remembered if the file still has the attributes it had before it was read.
+	 *
+	 * @param file the file
+	 * @param attributes the attributes of the file before it was read
+	 * @param sha256 the lower-case hex SHA-256 hash of the contents read
+	 */
+	public void put(Path file, BasicFileAttributes attributes, String sha256) throws IOException {
+		Path realPath = file.toRealPath();
+		Entry entry = new Entry(realPath.toString(), attributes, sha256);
+		if (entry.matches(Files.readAttributes(realPath, BasicFileAttributes.class))) {
+			put(entry);
+		}
+	}
+
+	/**
+	 * Removes the cached hash of a file.
+	 *
+	 * @param file the file
+	 */
+	public synchronized void invalidate(Path file) throws IOException {
+		String key = Files.exists(file) ? file.toRealPath().toString() : file.toAbsolutePath().normalize().toString();
+		if (entries.remove(key) != null) {
+			append(new Entry(key, -1, 0, "", ""));
+			staleRecords++;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		log.close();
+	}
+
+	private synchronized void put(Entry entry) throws IOException {
+		if (entries.put(entry.path, entry) != null) {
+			staleRecords++;
+		}
+		append(entry);
+	}
+
+	private void append(Entry entry) throws IOException {
+		log.append(encode(entry));
+		log.flush();
+	}
+
+	private static byte[] encode(Entry entry) throws IOException {
+		ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(128);
+		DataOutputStream record = new DataOutputStream(recordBytes);
+		record.writeByte(RECORD_VERSION);
+		record.writeUTF(entry.path);
+		record.writeLong(entry.size);
+		record.writeLong(entry.lastModifiedNanos);
+		record.writeUTF(entry.fileKey);
+		record.writeUTF(entry.sha256);
+		return recordBytes.toByteArray();
+	}
+
+	private static Entry decode(byte[] bytes) throws IOException {
+		DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+		if (record.readByte() != RECORD_VERSION) {
+			throw new EOFException("Unsupported hash cache record version.");
+		}
+		String path = record.readUTF();
+		long size = record.readLong();
+		long lastModifiedNanos = record.readLong();
+		String fileKey = record.readUTF();
+		String sha256 = record.readUTF();
+		return new Entry(path, size, lastModifiedNanos, fileKey, sha256);
+	}
+
+	/**
+	 * A cached hash together with the file attributes it was computed for.
+	 * A negative size marks a removal record.
+	 */
+	private static class Entry {
+		final String path;
+		final long size;
+		final long lastModifiedNanos;
+		final String fileKey;
+		final String sha256;
+
+		Entry(String path, long size, long lastModifiedNanos, String fileKey, String sha256) {
+			this.path = path;
+			this.size = size;
+			this.lastModifiedNanos = lastModifiedNanos;
+			this.fileKey = fileKey;
+			this.sha256 = sha256;
+		}
+
+		Entry(String path, BasicFileAttributes attributes, String sha256) {
+			this(path, attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+					fileKeyOf(attributes), sha256);
+		}
+
+		boolean matches(BasicFileAttributes attributes) {
+			return size == attributes.size()
+					&& lastModifiedNanos == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+					&& fileKey.equals(fileKeyOf(attributes));
+		}
+
+		private static String fileKeyOf(BasicFileAttributes attributes) {
+			Object fileKey = attributes.fileKey();
+			return fileKey == null ? "" : fileKey.toString();
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for computing the SHA-256 hashes that Syncplicity uses to identify file content.
+ */
+public class HashHelper {
+
+	private final static String SHA256_ALGORITHM = "SHA-256";
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Creates a new SHA-256 digest.
+	 *
+	 * @return the digest instance
+	 */
+	public static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance(SHA256_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Computes the SHA-256 hash of a local file, reading it in chunks
+	 * so that the file is never held in memory as a whole.
+	 *
+	 * @param file the file to hash
+	 * @return the lower-case hex representation of the hash
+	 */
+	public static String sha256(Path file) throws IOException {
+		MessageDigest digest = newSha256();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = Files.newInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return toHexString(digest.digest());
+	}
+
+	/**
+	 * Converts a hash to its lower-case hex representation.
+	 *
+	 * @param hash the raw hash bytes
+	 * @return the hex string
+	 */
+	public static String toHexString(byte[] hash) {
+		StringBuilder hexBuilder = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			hexBuilder.append(String.format("%02x", b));
+		}
+		return hexBuilder.toString();
+	}
+}
@@ -0,0 +1,118 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads the elements of one array property of a JSON object one at a time, as they arrive.
+ * <p>
+ * Only the element being read is held in memory, so a response with hundreds of thousands of
+ * entries can be processed without decoding it into one array. The other properties of the object
+ * are skipped. Elements are converted the same way as in {@link JSONSerialization}.
+ * A read error ends the iteration with an {@link UncheckedIOException}.
+ *
+ * @param <T> the type of the elements
+ */
+public class JSONArrayReader<T> implements Iterator<T>, Closeable {
+
+	private final JsonReader reader;
+	private final Class<T> elementType;
+	private final String propertyName;
+	private final Gson gson = JSONSerialization.createGson();
+	private boolean started;
+	private boolean finished;
+
+	/**
+	 * Creates a reader. Nothing is read until the first element is asked for.
+	 *
+	 * @param in the JSON object stream, closed with the reader
+	 * @param propertyName the name of the array property to read, e.g. Files
+	 * @param elementType the type of the elements
+	 */
+	public JSONArrayReader(InputStream in, String propertyName, Class<T> elementType) {
+		this.reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		this.propertyName = propertyName;
+		this.elementType = elementType;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (finished) {
+			return false;
+		}
+		try {
+			if (!started) {
+				started = true;
+				if (!moveToArray()) {
+					finished = true;
+					return false;
+				}
+			}
+			if (reader.hasNext()) {
+				return true;
+			}
+			reader.endArray();
+			finished = true;
+			return false;
+		} catch (IOException | IllegalStateException e) {
+			finished = true;
+			throw new UncheckedIOException(new IOException(
+					String.format("Could not read the %s of the response.", propertyName), e));
+		}
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		try {
+			return gson.fromJson(reader, elementType);
+		} catch (JsonParseException e) {
+			finished = true;
+			throw new UncheckedIOException(new IOException(
+					String.format("Could not read the %s of the response.", propertyName), e));
+		}
+	}
+
+	/**
+	 * Closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		finished = true;
+		reader.close();
+	}
+
+	/**
+	 * Skips the properties preceding the array and enters it.
+	 *
+	 * @return false if the object has no such array or it is null
+	 */
+	private boolean moveToArray() throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			return false;
+		}
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals(propertyName) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				return true;
+			}
+			reader.skipValue();
+		}
+		return false;
+	}
+}
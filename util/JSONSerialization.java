@@ -53,14 +53,21 @@ class JSONSerialization {
 		
 		if( !StringUtils.isEmpty(serialized) && !StringUtils.isWhitespace(serialized) ) {
 			
-			Gson gson = new GsonBuilder()
-					.registerTypeAdapterFactory(new EnumAdapterFactory())
-					.registerTypeAdapter(Date.class, new JSONDateTypeAdapter())
-					.create();
-
-			return gson.fromJson(serialized, classType);
+			return createGson().fromJson(serialized, classType);
 		}
 
 		return null;
 	}
+
+	/**
+	 * Creates the Gson instance used to deserialize responses.
+	 * 
+	 * @return The Gson instance.
+	 */
+	static Gson createGson() {
+		return new GsonBuilder()
+				.registerTypeAdapterFactory(new EnumAdapterFactory())
+				.registerTypeAdapter(Date.class, new JSONDateTypeAdapter())
+				.create();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of CRC-protected records, the storage of the local caches and indexes.
+ * <p>
+ * Each record is written as its length, its bytes and the CRC-32 of its bytes, in one write, so a
+ * crash can only tear the last record. Replaying the log stops at the first record that is incomplete,
+ * fails its checksum or cannot be decoded, and cuts the log off there. The owner keeps the state
+ * the records describe and decides when to rewrite the log with only its live records.
+ */
+public class RecordLog implements Closeable {
+
+	/**
+	 * Receives the records of a log while it is replayed.
+	 */
+	public interface RecordHandler {
+		/**
+		 * @param record the record bytes
+		 * @throws EOFException if the record cannot be decoded, which ends the replay
+		 */
+		void handle(byte[] record) throws IOException;
+	}
+
+	/**
+	 * Writes the records of a rewritten log.
+	 */
+	public interface RecordWriter {
+		void writeTo(RecordLog log) throws IOException;
+	}
+
+	private final Path file;
+	private final String description;
+	private final int maxRecordLength;
+	private OutputStream out;
+
+	/**
+	 * Creates a log. Nothing is read or written until the log is replayed or opened.
+	 *
+	 * @param file the log file
+	 * @param description what the log stores, e.g. "hash cache", for messages
+	 * @param maxRecordLength the length above which a record is taken as corrupt
+	 */
+	public RecordLog(Path file, String description, int maxRecordLength) {
+		this.file = file;
+		this.description = description;
+		this.maxRecordLength = maxRecordLength;
+	}
+
+	/**
+	 * Replays the log, discarding a torn record at its end.
+	 *
+	 * @param handler receives the records in the order they were written
+	 * @return true if a torn record was discarded
+	 */
+	public boolean replay(RecordHandler handler) throws IOException {
+		if (!Files.exists(file)) {
+			return false;
+		}
+		long validLength = 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+			 DataInputStream in = new DataInputStream(new BufferedInputStream(
+					 Channels.newInputStream(channel), 64 * 1024))) {
+			while (true) {
+				try {
+					int recordLength = in.readInt();
+					if (recordLength <= 0 || recordLength > maxRecordLength) {
+						break;
+					}
+					byte[] record = new byte[recordLength];
+					in.readFully(record);
+					if (in.readLong() != crc32(record)) {
+						break;
+					}
+					handler.handle(record);
+					validLength += 4 + recordLength + 8;
+				} catch (EOFException e) {
+					break;
+				}
+			}
+		}
+		if (validLength == Files.size(file)) {
+			return false;
+		}
+		System.err.println(String.format("Discarding a torn record at the end of %s '%s'", description, file));
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(validLength);
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the log with the records of the writer, e.g. only the live ones.
+	 * The new log is written to a temporary file first and moved over the log once it is complete.
+	 *
+	 * @param writer appends the records with {@link #append(byte[])}
+	 */
+	public synchronized void rewrite(RecordWriter writer) throws IOException {
+		close();
+		Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			out = new BufferedOutputStream(Files.newOutputStream(tempFile), 64 * 1024);
+			writer.writeTo(this);
+		} finally {
+			close();
+		}
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Opens the log for appending, creating it if it does not exist.
+	 */
+	public synchronized void open() throws IOException {
+		if (out == null) {
+			out = new BufferedOutputStream(Files.newOutputStream(file,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+		}
+	}
+
+	/**
+	 * Appends a record. It is buffered until the log is flushed.
+	 *
+	 * @param record the record bytes
+	 */
+	public synchronized void append(byte[] record) throws IOException {
+		if (out == null) {
+			throw new IOException(String.format("The %s is closed.", description));
+		}
+		// write the whole record at once to keep torn writes confined to the log tail
+		ByteBuffer buffer = ByteBuffer.allocate(4 + record.length + 8);
+		buffer.putInt(record.length).put(record).putLong(crc32(record));
+		out.write(buffer.array());
+	}
+
+	public synchronized void flush() throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	private static long crc32(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		return crc.getValue();
+	}
+}
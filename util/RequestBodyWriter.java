@@ -0,0 +1,23 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A request body that is streamed to the connection instead of being built in memory.
+ * The body may be written more than once, e.g. when a request is re-sent after re-authentication.
+ */
+public interface RequestBodyWriter {
+
+	/**
+	 * @return the number of bytes {@link #writeTo(OutputStream)} writes
+	 */
+	long getContentLength();
+
+	/**
+	 * Writes the body.
+	 *
+	 * @param out the request stream
+	 */
+	void writeTo(OutputStream out) throws IOException;
+}
@@ -0,0 +1,121 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+/**
+ * Holds the contents of a stream of unknown length so that it can be read again,
+ * e.g. to upload data piped from another process.
+ * <p>
+ * Contents up to a threshold are kept in memory, larger contents are spilled to a temporary file
+ * that is deleted when the buffer is closed. The SHA-256 hash of the contents is computed
+ * while they are being spooled, so the contents are read from the source only once.
+ */
+public class SpoolBuffer implements Closeable {
+
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	private byte[] memoryContents;
+	private Path spillFile;
+	private long size;
+	private String sha256;
+
+	private SpoolBuffer() {
+	}
+
+	/**
+	 * Reads a stream to its end into a new buffer. The stream is not closed.
+	 *
+	 * @param in the stream to read
+	 * @param memoryThreshold the number of bytes kept in memory before the contents are spilled to disk
+	 * @return the buffer holding the stream contents
+	 */
+	public static SpoolBuffer spool(InputStream in, int memoryThreshold) throws IOException {
+		SpoolBuffer spoolBuffer = new SpoolBuffer();
+		MessageDigest digest = HashHelper.newSha256();
+		ByteArrayOutputStream memory = new ByteArrayOutputStream(Math.min(memoryThreshold, BUFFER_SIZE));
+		OutputStream spill = null;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+				spoolBuffer.size += read;
+				if (spill == null && read > memoryThreshold - memory.size()) {
+					spoolBuffer.spillFile = Files.createTempFile("spool", ".tmp");
+					spill = new BufferedOutputStream(Files.newOutputStream(spoolBuffer.spillFile), BUFFER_SIZE);
+					memory.writeTo(spill);
+					memory = null;
+				}
+				if (spill != null) {
+					spill.write(buffer, 0, read);
+				} else {
+					memory.write(buffer, 0, read);
+				}
+			}
+			if (spill != null) {
+				spill.close();
+				spill = null;
+			} else {
+				spoolBuffer.memoryContents = memory.toByteArray();
+			}
+		} catch (IOException e) {
+			if (spill != null) {
+				try {
+					spill.close();
+				} catch (IOException ignored) {
+				}
+			}
+			spoolBuffer.close();
+			throw e;
+		}
+		spoolBuffer.sha256 = HashHelper.toHexString(digest.digest());
+		return spoolBuffer;
+	}
+
+	/**
+	 * @return the number of bytes in the buffer
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return the lower-case hex SHA-256 hash of the contents
+	 */
+	public String getSha256() {
+		return sha256;
+	}
+
+	/**
+	 * Writes the contents to a stream. May be called any number of times.
+	 *
+	 * @param out the stream to write to
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (memoryContents != null) {
+			out.write(memoryContents);
+		} else {
+			Files.copy(spillFile, out);
+		}
+	}
+
+	/**
+	 * Releases the contents, deleting the temporary file if the contents were spilled to disk.
+	 */
+	@Override
+	public void close() throws IOException {
+		memoryContents = null;
+		if (spillFile != null) {
+			Files.deleteIfExists(spillFile);
+			spillFile = null;
+		}
+	}
+}